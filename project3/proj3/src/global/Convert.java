@@ -119,4 +119,49 @@ public class Convert {
 
   } // public static void setStringValue(String value, int pos, byte[] data)
 
+  /**
+   * Compares two strings stored as bytes, with the same result as comparing
+   * the decoded (and, if requested, trimmed) strings; ASCII bytes are
+   * compared in place, anything else falls back to decoding.
+   */
+  public static int compareStrings(byte[] a, int aoff, int alen,
+      boolean atrim, byte[] b, int boff, int blen, boolean btrim) {
+
+    // trim like String.trim, which drops the zero padding too
+    int astart = aoff, aend = aoff + alen;
+    if (atrim) {
+      while (astart < aend && (a[astart] & 0xff) <= ' ') astart++;
+      while (aend > astart && (a[aend - 1] & 0xff) <= ' ') aend--;
+    }
+    int bstart = boff, bend = boff + blen;
+    if (btrim) {
+      while (bstart < bend && (b[bstart] & 0xff) <= ' ') bstart++;
+      while (bend > bstart && (b[bend - 1] & 0xff) <= ' ') bend--;
+    }
+
+    // ASCII bytes order the same way as their chars
+    int comp = 0;
+    for (int i = astart; i < aend; i++) {
+      if (a[i] < 0) comp = Integer.MIN_VALUE;
+    }
+    for (int j = bstart; j < bend; j++) {
+      if (b[j] < 0) comp = Integer.MIN_VALUE;
+    }
+    if (comp == 0) {
+      int i = astart, j = bstart;
+      for (; i < aend && j < bend; i++, j++) {
+        if (a[i] != b[j]) {
+          return a[i] - b[j];
+        }
+      }
+      return (aend - i) - (bend - j);
+    }
+
+    // otherwise decode, like the interpreted operators do
+    String s1 = new String(a, aoff, alen);
+    String s2 = new String(b, boff, blen);
+    return (atrim ? s1.trim() : s1).compareTo(btrim ? s2.trim() : s2);
+
+  } // public static int compareStrings(...)
+
 } // public class Convert
@@ -1,5 +1,10 @@
 package global;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Provides a general and type-safe way to store and compare index search keys.
  */
@@ -14,6 +19,9 @@ public class SearchKey implements Comparable<SearchKey> {
   /** Internal type number for String keys. */
   protected static final byte STRING_KEY = 3;
 
+  /** Internal type number for composite keys. */
+  protected static final byte COMPOSITE_KEY = 4;
+
   // --------------------------------------------------------------------------
 
   /** The type of the key value. */
@@ -82,6 +90,11 @@ public class SearchKey implements Comparable<SearchKey> {
       this.value = value;
     }
 
+    // composite key?
+    else if (value instanceof Object[]) {
+      initComposite((Object[]) value);
+    }
+
     // otherwise, none of the above
     else {
       throw new IllegalArgumentException("invalid key value type");
@@ -89,6 +102,34 @@ public class SearchKey implements Comparable<SearchKey> {
 
   } // public SearchKey(Object value)
 
+  /**
+   * Constructs a new composite search key from the given values (each an
+   * Integer, Float, or String), most significant first. Composite keys are
+   * equal if all their values are, and order by their values in turn.
+   * 
+   * @throws IllegalArgumentException if a value's type is invalid
+   */
+  public SearchKey(Object[] values) {
+    initComposite(values);
+  }
+
+  /**
+   * Makes this a composite key of the given values; its data is the values
+   * stored one after another, each as a search key of its own.
+   */
+  private void initComposite(Object[] values) {
+    int length = 0;
+    for (Object v : values) {
+      if (v instanceof Object[]) {
+        throw new IllegalArgumentException("invalid key value type");
+      }
+      length += new SearchKey(v).getLength();
+    }
+    this.type = COMPOSITE_KEY;
+    this.size = (short) length;
+    this.value = Collections.unmodifiableList(Arrays.asList(values.clone()));
+  }
+
   /**
    * Copy constructor for a search key.
    */
@@ -109,6 +150,9 @@ public class SearchKey implements Comparable<SearchKey> {
       case STRING_KEY:
         this.value = new String((String) key.value);
         break;
+      case COMPOSITE_KEY:
+        this.value = key.value;
+        break;
     }
 
   } // public SearchKey(SearchKey key)
@@ -135,6 +179,15 @@ public class SearchKey implements Comparable<SearchKey> {
       case STRING_KEY:
         value = Convert.getStringValue(offset + 3, data, size);
         break;
+      case COMPOSITE_KEY:
+        List<Object> values = new ArrayList<Object>();
+        for (int pos = offset + 3; pos < offset + 3 + size; ) {
+          SearchKey part = new SearchKey(data, (short) pos);
+          values.add(part.value);
+          pos += part.getLength();
+        }
+        value = Collections.unmodifiableList(values);
+        break;
     }
 
   } // public SearchKey(byte[] data, short offset)
@@ -159,6 +212,14 @@ public class SearchKey implements Comparable<SearchKey> {
       case STRING_KEY:
         Convert.setStringValue((String) value, offset + 3, data);
         break;
+      case COMPOSITE_KEY:
+        int pos = offset + 3;
+        for (Object v : (List<?>) value) {
+          SearchKey part = new SearchKey(v);
+          part.writeData(data, (short) pos);
+          pos += part.getLength();
+        }
+        break;
     }
 
   } // public void writeData(byte[] data, short offset)
@@ -202,6 +263,11 @@ public class SearchKey implements Comparable<SearchKey> {
         }
         return skey & mask;
 
+      case COMPOSITE_KEY:
+
+        // combine the values' hash codes
+        return value.hashCode() & mask;
+
     } // switch
 
   } // public int getHash(int depth)
@@ -249,6 +315,27 @@ public class SearchKey implements Comparable<SearchKey> {
    */
   public int compareTo(SearchKey key) {
 
+    // composite comparison, value by value
+    if (value instanceof List) {
+      if (key.value instanceof List) {
+
+        List<?> ckey1 = (List<?>) this.value;
+        List<?> ckey2 = (List<?>) key.value;
+        int len = Math.min(ckey1.size(), ckey2.size());
+        for (int i = 0; i < len; i++) {
+          int comp = new SearchKey(ckey1.get(i)).compareTo(
+              new SearchKey(ckey2.get(i)));
+          if (comp != 0) {
+            return comp;
+          }
+        }
+        return ckey1.size() - ckey2.size();
+
+      } else {
+        throw new IllegalArgumentException("search keys are not comparable");
+      }
+    }
+
     // Integer comparison
     if (value instanceof Integer) {
       if (key.value instanceof Integer) {
@@ -0,0 +1,234 @@
+package relop;
+
+import global.SortKey;
+
+import java.util.ArrayList;
+
+/**
+ * Band join: each left tuple is joined with the right tuples whose range
+ * holds its key, i.e. left.col BETWEEN right.low AND right.high (inclusive).
+ * Rather than testing every pair, the left input is taken in order of its key
+ * and the right input in order of the low bound (each sorted if it is not
+ * already, see getOrder), and one pass sweeps over both: right tuples join the
+ * active set once their range starts at or before the current key, and leave
+ * it once it has gone past their range. Only the active set is kept in
+ * memory, and only its members are compared. The result is in the order of
+ * the left key.
+ */
+public class BandJoin extends Iterator {
+
+  private Iterator left = null;
+  private Iterator right = null;
+  private int lcol;
+  private int rlow;
+  private int rhigh;
+  private boolean isOpen = false;
+
+  /** The current left tuple, and the next active right tuple to pair up. */
+  private Tuple lTuple = null;
+  private int activePos = 0;
+
+  /** The right tuples whose range has started, in no particular order. */
+  private ArrayList<Tuple> active = new ArrayList<Tuple>();
+
+  /** The next right tuple, not yet active; null once right is done. */
+  private Tuple rTuple = null;
+  private boolean started = false;
+  private boolean done = false;
+
+  /** Number of right tuples compared with a left key. */
+  private int compared = 0;
+
+  private Tuple nextTuple = null;
+
+  /**
+   * Constructs a join, given the left and right iterators, the left column to
+   * match, and the right columns holding the low and high bounds of the range
+   * (relative to their individual schemas).
+   */
+  public BandJoin(Iterator left, Iterator right, Integer lcol, Integer rlow,
+      Integer rhigh) {
+    this(left, right, lcol, rlow, rhigh, Sort.DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * Constructs a join, given the left and right iterators, the columns to
+   * match, and the memory budget in pages for each sort (if any).
+   * 
+   * @throws IllegalArgumentException if the columns are of different types
+   */
+  public BandJoin(Iterator left, Iterator right, Integer lcol, Integer rlow,
+      Integer rhigh, int memoryPages) {
+    this.lcol = Sort.fieldNumber(left.schema, lcol);
+    this.rlow = Sort.fieldNumber(right.schema, rlow);
+    this.rhigh = Sort.fieldNumber(right.schema, rhigh);
+    int type = left.schema.fieldType(this.lcol);
+    if (right.schema.fieldType(this.rlow) != type
+        || right.schema.fieldType(this.rhigh) != type) {
+      throw new IllegalArgumentException("columns of different types");
+    }
+    this.schema = Schema.join(left.schema, right.schema);
+    this.left = SortMergeJoin.ordered(left, this.lcol, false, memoryPages);
+    this.right = SortMergeJoin.ordered(right, this.rlow, false, memoryPages);
+    isOpen = true;
+  }
+
+  /**
+   * Gets the order of the resulting tuples, i.e. on the left join column.
+   */
+  public SortKey[] getOrder() {
+    return new SortKey[] { new SortKey(lcol, false) };
+  }
+
+  /**
+   * Gets the number of right tuples compared with a left key so far.
+   */
+  public int getCompared() {
+    return compared;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("BAND JOIN (" + left.schema.fieldName(lcol)
+        + " BETWEEN " + right.schema.fieldName(rlow) + " AND "
+        + right.schema.fieldName(rhigh) + ")");
+    left.explain(depth + 1);
+    right.explain(depth + 1);
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    left.restart();
+    right.restart();
+    lTuple = null;
+    activePos = 0;
+    active.clear();
+    rTuple = null;
+    started = false;
+    done = false;
+    compared = 0;
+    nextTuple = null;
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    left.close();
+    right.close();
+    active.clear();
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (nextTuple == null) {
+      nextTuple = findNext();
+    }
+    return nextTuple != null;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (!hasNext()) {
+      throw new IllegalStateException();
+    }
+    Tuple retVal = nextTuple;
+    nextTuple = null;
+    return retVal;
+  }
+
+  /**
+   * Returns the next joined tuple, or null if there are no more.
+   */
+  private Tuple findNext() {
+    if (!isOpen || done) {
+      return null;
+    }
+    while (true) {
+
+      // pair the current left tuple with the active ranges that hold it
+      while (null != lTuple && activePos < active.size()) {
+        Tuple r = active.get(activePos);
+        compared++;
+        if (Sort.compare(lTuple, lcol, r, rhigh) > 0) {
+          // the keys have gone past this range for good
+          int last = active.size() - 1;
+          active.set(activePos, active.get(last));
+          active.remove(last);
+          continue;
+        }
+        activePos++;
+        return Tuple.join(lTuple, r, schema);
+      }
+
+      // move on to the next left tuple
+      if (!left.hasNext()) {
+        done = true;
+        return null;
+      }
+      lTuple = left.getNext();
+      if (lTuple.isNull(lcol)) {
+        // a null key is in no range
+        activePos = active.size();
+        continue;
+      }
+      activePos = 0;
+
+      // activate the ranges that start at or before it
+      if (!started) {
+        rTuple = nextRight();
+        started = true;
+      }
+      while (null != rTuple && Sort.compare(lTuple, lcol, rTuple, rlow) >= 0) {
+        active.add(rTuple);
+        rTuple = nextRight();
+      }
+      if (active.isEmpty() && null == rTuple) {
+        // nothing left on the right to match
+        done = true;
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Gets the next right tuple (copied if the right side recycles them), or
+   * null if there are no more; ranges with a null bound hold nothing, so they
+   * are skipped.
+   */
+  private Tuple nextRight() {
+    while (right.hasNext()) {
+      Tuple t = right.getNext();
+      if (t.isNull(rlow) || t.isNull(rhigh)) {
+        continue;
+      }
+      if (right.reuse) {
+        t = new Tuple(right.schema, t.getData().clone());
+      }
+      return t;
+    }
+    return null;
+  }
+
+} // public class BandJoin extends Iterator
@@ -0,0 +1,207 @@
+package relop;
+
+import global.GlobalConst;
+
+/**
+ * Block nested loops join (see textbook, 3rd edition, section 14.4.1, page
+ * 455): the left input is read a block at a time, as many tuples as fit in
+ * the memory budget, and the right input is scanned once per block rather
+ * than once per left tuple. Each pair is assembled in one scratch tuple to be
+ * tested, and only the pairs that qualify are copied out.
+ */
+public class BlockNestedLoopJoin extends Iterator {
+
+  /** Default memory budget, in pages. */
+  public static final int DEFAULT_MEMORY_PAGES = 64;
+
+  private Iterator left = null;
+  private Iterator right = null;
+  private Predicate[] preds = null;
+  private int memoryPages;
+  private boolean isOpen = false;
+
+  /** The current block of left tuples, and the next one to pair up. */
+  private Tuple[] block = null;
+  private int blockCount = 0;
+  private int blockPos = 0;
+
+  /** True while a right tuple is in the scratch tuple being paired up. */
+  private boolean pairing = false;
+
+  /** Where the pairs are assembled, and the length of a left tuple in it. */
+  private Tuple scratch = null;
+  private int leftLength;
+
+  /** Number of times the right input has been scanned. */
+  private int rightScans = 0;
+
+  private Tuple next = null;
+
+  /**
+   * Constructs a join, given the left and right iterators and join predicates
+   * (relative to the combined schema).
+   */
+  public BlockNestedLoopJoin(Iterator left, Iterator right,
+      Predicate... preds) {
+    this(left, right, DEFAULT_MEMORY_PAGES, preds);
+  }
+
+  /**
+   * Constructs a join, given the left and right iterators, the memory budget
+   * in pages for each block, and join predicates.
+   */
+  public BlockNestedLoopJoin(Iterator left, Iterator right, int memoryPages,
+      Predicate... preds) {
+    if (memoryPages < 1) {
+      throw new IllegalArgumentException("memory budget too small");
+    }
+    this.left = left;
+    this.right = right;
+    this.preds = preds;
+    this.memoryPages = memoryPages;
+    this.schema = Schema.join(left.schema, right.schema);
+    leftLength = left.schema.getLength();
+    long budget = (long) memoryPages * GlobalConst.PAGE_SIZE;
+    block = new Tuple[(int) Math.max(1, budget / leftLength)];
+    scratch = new Tuple(schema);
+    isOpen = true;
+  }
+
+  /**
+   * Gets the number of times the right input has been scanned.
+   */
+  public int getRightScans() {
+    return rightScans;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("BLOCK NESTED LOOP JOIN (" + memoryPages + " pages)");
+    left.explain(depth + 1);
+    right.explain(depth + 1);
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    left.restart();
+    right.restart();
+    blockCount = 0;
+    blockPos = 0;
+    pairing = false;
+    rightScans = 0;
+    next = null;
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    left.close();
+    right.close();
+    blockCount = 0;
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (null == next) {
+      next = findNext();
+    }
+    return null != next;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (!hasNext()) {
+      throw new IllegalStateException();
+    }
+    Tuple retVal = next;
+    next = null;
+    return retVal;
+  }
+
+  /**
+   * Returns the next qualifying pair, or null if there are no more.
+   */
+  private Tuple findNext() {
+    if (!isOpen) {
+      return null;
+    }
+    byte[] pair = scratch.getData();
+    while (true) {
+
+      // pair the current right tuple with the rest of the block
+      if (pairing) {
+        while (blockPos < blockCount) {
+          System.arraycopy(block[blockPos++].getData(), 0, pair, 0,
+              leftLength);
+          if (qualify(scratch)) {
+            return new Tuple(schema, pair.clone());
+          }
+        }
+        pairing = false;
+      }
+
+      // move on to the next right tuple, or else the next block
+      if (blockCount > 0 && right.hasNext()) {
+        byte[] data = right.getNext().getData();
+        System.arraycopy(data, 0, pair, leftLength, pair.length - leftLength);
+        blockPos = 0;
+        pairing = true;
+      } else if (!nextBlock()) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Reads the next block of left tuples and rescans the right input; returns
+   * false if the left input is exhausted.
+   */
+  private boolean nextBlock() {
+    blockCount = 0;
+    while (blockCount < block.length && left.hasNext()) {
+      Tuple t = left.getNext();
+      if (left.reuse) {
+        t = new Tuple(left.schema, t.getData().clone());
+      }
+      block[blockCount++] = t;
+    }
+    if (0 == blockCount) {
+      return false;
+    }
+    right.restart();
+    rightScans++;
+    return true;
+  }
+
+  private boolean qualify(Tuple t) {
+    for (Predicate p : preds) {
+      if (p.evaluate(t)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+} // public class BlockNestedLoopJoin extends Iterator
@@ -0,0 +1,99 @@
+package relop;
+
+/**
+ * A Bloom filter over join keys (see JoinHashTable.hash), which a hash join
+ * fills from its build side and pushes into its probe scan, so that records
+ * without a match are dropped before they are made into tuples. It may let
+ * through a record that has no match, but never drops one that does.
+ */
+class BloomFilter {
+
+  /** Bits per key; with three probes, about 2% false positives. */
+  public static final int BITS_PER_KEY = 10;
+
+  private static final int PROBES = 3;
+
+  private final long[] bits;
+  private final int mask;
+
+  private long tested;
+  private long rejected;
+
+  /**
+   * Constructs an empty filter, sized for the given number of keys.
+   */
+  public BloomFilter(int keys) {
+    long want = Math.max(64, (long) keys * BITS_PER_KEY);
+    int words = 1;
+    while ((long) words * 64 < want && words < (1 << 24)) {
+      words <<= 1;
+    }
+    bits = new long[words];
+    mask = words * 64 - 1;
+  }
+
+  /**
+   * Adds a key to the filter.
+   */
+  public void add(int key) {
+    int h = mix(key);
+    int step = (h >>> 17) | 1;
+    for (int i = 0; i < PROBES; i++, h += step) {
+      bits[(h & mask) >>> 6] |= 1L << h;
+    }
+  }
+
+  /**
+   * Returns false if the key was definitely never added.
+   */
+  public boolean mightContain(int key) {
+    int h = mix(key);
+    int step = (h >>> 17) | 1;
+    for (int i = 0; i < PROBES; i++, h += step) {
+      if ((bits[(h & mask) >>> 6] & (1L << h)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tests the key of a record, given where it is, and counts the result; a
+   * key with a null field matches nothing, so it is always dropped.
+   */
+  public boolean test(byte[] data, JoinHashTable.Key key) {
+    tested++;
+    if (!key.isNull(data) && mightContain(JoinHashTable.hash(data, key))) {
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  /**
+   * Gets the number of records tested.
+   */
+  public long getTested() {
+    return tested;
+  }
+
+  /**
+   * Gets the number of records dropped.
+   */
+  public long getRejected() {
+    return rejected;
+  }
+
+  /**
+   * Spreads the bits of a key (the murmur3 finalizer).
+   */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+} // class BloomFilter
@@ -0,0 +1,152 @@
+package relop;
+
+import global.RID;
+import heap.HeapFile;
+import heap.HeapScan;
+
+/**
+ * Runs a kernel generated by PipelineCompiler over a heap file; this single
+ * iterator stands in for the whole scan-select-project chain it was compiled
+ * from.
+ */
+public class CompiledScan extends Iterator {
+
+  private HeapFile file;
+  private HeapScan scan;
+  private PipelineCompiler.Kernel kernel;
+
+  /** True if the kernel projects, false if it passes records through. */
+  private boolean project;
+
+  private boolean isOpen;
+  private Tuple next;
+  private RID rid;
+
+  /**
+   * Constructs a compiled scan, given the output schema, heap file, and kernel.
+   */
+  CompiledScan(Schema schema, HeapFile file, PipelineCompiler.Kernel kernel,
+      boolean project) {
+    this.schema = schema;
+    this.file = file;
+    this.kernel = kernel;
+    this.project = project;
+    rid = new RID();
+    init();
+  }
+
+  private void init() {
+    scan = file.openScan();
+    isOpen = true;
+    next = null;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("COMPILED SCAN (" + kernel.getClass().getName() + ")");
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    scan.close();
+    init();
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    isOpen = false;
+    next = null;
+    scan.close();
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (null == next) next = findNext(0);
+    return (null != next);
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (false == hasNext()) throw new IllegalStateException();
+    Tuple t = next;
+    next = null;
+    return t;
+  }
+
+  /**
+   * Fills the batch straight from the kernel.
+   */
+  public int nextBatch(Tuple[] batch) {
+    int cnt = 0;
+    if (null != next) {
+      batch[cnt++] = next;
+      next = null;
+    }
+    Tuple t = null;
+    while (cnt < batch.length && null != (t = findNext(cnt))) {
+      batch[cnt++] = t;
+    }
+    return cnt;
+  }
+
+  /**
+   * Pushes the qualifying tuples straight from the kernel.
+   */
+  public boolean produce(TupleConsumer consumer) {
+    if (null != next) {
+      Tuple t = next;
+      next = null;
+      if (false == consumer.consume(t)) return false;
+    }
+    Tuple t = null;
+    while (null != (t = findNext(0))) {
+      if (false == consumer.consume(t)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs records through the kernel until one qualifies, and returns its
+   * output tuple; null if there are no more.
+   */
+  private Tuple findNext(int slot) {
+    if (false == isOpen) return null;
+    while (scan.hasNext()) {
+      byte[] record = scan.getNext(rid);
+      if (false == kernel.filter(record)) continue;
+      Tuple t = reuse ? recycle(slot) : null;
+      if (project) {
+        if (null == t) t = new Tuple(schema);
+        kernel.project(record, t.getData());
+      } else if (null == t) {
+        t = new Tuple(schema, record);
+      } else {
+        t.wrap(record);
+      }
+      return t;
+    }
+    return null;
+  }
+
+} // public class CompiledScan extends Iterator
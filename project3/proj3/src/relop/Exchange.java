@@ -0,0 +1,269 @@
+package relop;
+
+import global.GlobalConst;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The exchange operator runs a pipeline over a file scan on several threads
+ * at once. The scan is split into morsels of a few pages' worth of tuples,
+ * each worker runs its own copy of the pipeline (i.e. selections, projections,
+ * or anything else that works on tuples in memory) over one morsel at a time,
+ * and the results are merged back into this single iterator, in no particular
+ * order. The heap file is only ever read on the calling thread, since the
+ * buffer manager is not thread-safe; up to one morsel per worker is kept in
+ * flight while the caller consumes results. For a hash join, each worker's
+ * pipeline probes with a HashJoin made from a shared one (see
+ * HashJoin(Iterator, HashJoin)), whose table is only read by the workers;
+ * before the first morsel goes out, each pipeline is run once over an empty
+ * morsel on the calling thread, so that such a table is built (and anything
+ * else the pipeline reads from disk is read) here.
+ */
+public class Exchange extends Iterator {
+
+  /**
+   * Builds one worker's copy of the pipeline on top of the given source.
+   */
+  public interface Pipeline {
+    public Iterator create(Iterator source);
+  }
+
+  /** Default morsel size, in pages. */
+  public static final int DEFAULT_MORSEL_PAGES = 4;
+
+  private FileScan scan;
+  private int dop;
+  private int morselSize;
+
+  /** Per-worker morsel sources, pipelines, and which ones are free. */
+  private MorselScan[] sources;
+  private Iterator[] pipelines;
+  private ArrayList<Integer> idle;
+
+  private ExecutorService pool;
+  private LinkedBlockingQueue<Result> done;
+  private int inFlight;
+
+  /** The current result morsel being handed out. */
+  private Result current;
+  private int pos;
+
+  private boolean isOpen;
+
+  /**
+   * Output of one worker for one morsel.
+   */
+  private static class Result {
+    int worker;
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    RuntimeException error;
+  }
+
+  /**
+   * Constructs an exchange, given the file scan to split, how to build the
+   * pipeline, and the degree of parallelism.
+   */
+  public Exchange(FileScan scan, Pipeline pipeline, int dop) {
+    this(scan, pipeline, dop, DEFAULT_MORSEL_PAGES);
+  }
+
+  /**
+   * Constructs an exchange, given the file scan to split, how to build the
+   * pipeline, the degree of parallelism, and the morsel size in pages.
+   */
+  public Exchange(FileScan scan, Pipeline pipeline, int dop, int morselPages) {
+    if (dop < 1 || morselPages < 1) {
+      throw new IllegalArgumentException("invalid degree of parallelism");
+    }
+    this.scan = scan;
+    this.dop = dop;
+    morselSize = Math.max(1, morselPages * GlobalConst.PAGE_SIZE
+        / Math.max(1, scan.schema.getLength()));
+    sources = new MorselScan[dop];
+    pipelines = new Iterator[dop];
+    for (int i = 0; i < dop; i++) {
+      sources[i] = new MorselScan(scan.schema);
+      pipelines[i] = pipeline.create(sources[i]);
+    }
+    this.schema = pipelines[0].schema;
+    scan.setReuse(false);
+    done = new LinkedBlockingQueue<Result>();
+    init();
+  }
+
+  private void init() {
+    idle = new ArrayList<Integer>();
+    for (int i = 0; i < dop; i++) {
+      idle.add(i);
+    }
+    inFlight = 0;
+    current = null;
+    pos = 0;
+    isOpen = true;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("EXCHANGE (" + dop + " workers)");
+    pipelines[0].explain(depth + 1);
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    drain();
+    scan.restart();
+    init();
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    drain();
+    if (null != pool) {
+      pool.shutdown();
+      pool = null;
+    }
+    for (Iterator p : pipelines) {
+      p.close();
+    }
+    scan.close();
+    current = null;
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    while (isOpen && (null == current || pos >= current.tuples.size())) {
+      current = null;
+      dispatch();
+      if (0 == inFlight) {
+        return false;
+      }
+      current = take();
+      pos = 0;
+    }
+    return (null != current);
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (false == hasNext()) throw new IllegalStateException();
+    return current.tuples.get(pos++);
+  }
+
+  /**
+   * Reads morsels on the calling thread and hands them to idle workers, until
+   * every worker is busy or the scan is exhausted.
+   */
+  private void dispatch() {
+    if (null == pool) {
+      pool = Executors.newFixedThreadPool(dop, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "exchange");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      for (int i = 0; i < dop; i++) {
+        sources[i].reset(new Tuple[0], 0);
+        pipelines[i].restart();
+        pipelines[i].hasNext();
+      }
+    }
+    while (!idle.isEmpty()) {
+      Tuple[] morsel = new Tuple[morselSize];
+      int n = scan.nextBatch(morsel);
+      if (0 == n) {
+        break;
+      }
+      final int worker = idle.remove(idle.size() - 1);
+      sources[worker].reset(morsel, n);
+      inFlight++;
+      pool.execute(new Runnable() {
+        public void run() {
+          done.add(work(worker));
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs one worker's pipeline over its current morsel.
+   */
+  private Result work(int worker) {
+    Result result = new Result();
+    result.worker = worker;
+    try {
+      Iterator pipeline = pipelines[worker];
+      pipeline.restart();
+      Tuple[] batch = new Tuple[BATCH_SIZE];
+      for (int n = pipeline.nextBatch(batch); n > 0; n = pipeline.nextBatch(batch)) {
+        for (int i = 0; i < n; i++) {
+          result.tuples.add(batch[i]);
+        }
+      }
+    } catch (RuntimeException exc) {
+      result.error = exc;
+    }
+    return result;
+  }
+
+  /**
+   * Waits for the next finished morsel and frees its worker.
+   */
+  private Result take() {
+    Result result = null;
+    while (null == result) {
+      try {
+        result = done.take();
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted waiting for workers");
+      }
+    }
+    inFlight--;
+    idle.add(result.worker);
+    if (null != result.error) {
+      throw result.error;
+    }
+    return result;
+  }
+
+  /**
+   * Waits for (and discards) every morsel still in flight.
+   */
+  private void drain() {
+    while (inFlight > 0 && !Thread.currentThread().isInterrupted()) {
+      try {
+        take();
+      } catch (RuntimeException exc) {
+        // the results are being thrown away anyway
+      }
+    }
+  }
+
+} // public class Exchange extends Iterator
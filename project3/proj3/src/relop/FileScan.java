@@ -8,7 +8,7 @@ import heap.HeapScan;
  * Wrapper for heap file scan, the most basic access method. This "iterator"
  * version takes schema into consideration and generates real tuples.
  */
-public class FileScan extends Iterator {
+public class FileScan extends Iterator implements FileSource {
 
   private HeapScan scan;
   private HeapFile file;
@@ -16,6 +16,14 @@ public class FileScan extends Iterator {
   private boolean isOpen;
   private RID lastRID;
 
+  /** Drops records whose key fails the filter, unless null. */
+  private BloomFilter filter;
+  private JoinHashTable.Key filterKey;
+
+  /** A record read ahead by hasNext (when filtering), and its RID. */
+  private byte[] ahead;
+  private RID aheadRID;
+
   /**
    * Constructs a file scan, given the schema and heap file.
    */
@@ -29,6 +37,24 @@ public class FileScan extends Iterator {
     scan = file.openScan();
     isOpen = true;
     lastRID = null;
+    ahead = null;
+  }
+
+  /**
+   * Drops the records whose key (the given fields) is not in the filter from
+   * now on, or none if the filter is null.
+   */
+  public void setFilter(BloomFilter filter, int[] cols) {
+    this.filter = filter;
+    this.filterKey = (null == filter) ? null : new JoinHashTable.Key(schema,
+        cols);
+  }
+
+  /**
+   * Gets the layout of the tuples: the records themselves.
+   */
+  public String getLayout() {
+    return "records";
   }
 
   /**
@@ -36,7 +62,8 @@ public class FileScan extends Iterator {
    * child iterators, and increases the indent depth along the way.
    */
   public void explain(int depth) {
-    throw new UnsupportedOperationException("Not implemented");
+    indent(depth);
+    System.out.println("FILE SCAN");
   }
 
   /**
@@ -66,7 +93,13 @@ public class FileScan extends Iterator {
    * Returns true if there are more tuples, false otherwise.
    */
   public boolean hasNext() {
-    return isOpen ? scan.hasNext() : false;
+    if (!isOpen) return false;
+    if (null == filter && null == ahead) return scan.hasNext();
+    if (null == ahead) {
+      if (!reuse || null == aheadRID) aheadRID = new RID();
+      ahead = read(aheadRID);
+    }
+    return null != ahead;
   }
 
   /**
@@ -75,14 +108,84 @@ public class FileScan extends Iterator {
    * @throws IllegalStateException if no more tuples
    */
   public Tuple getNext() {
-    lastRID = new RID();
-    byte[] record = scan.getNext(lastRID);
+    byte[] record = next();
     if (null == record) throw new IllegalStateException();
-    return new Tuple(schema, record);
+    return wrap(0, record);
+  }
+
+  /**
+   * Fills the batch straight from the heap scan, skipping the per-row
+   * hasNext/getNext calls.
+   */
+  public int nextBatch(Tuple[] batch) {
+    if (!isOpen) return 0;
+    int cnt = 0;
+    byte[] record;
+    while (cnt < batch.length && (record = next()) != null) {
+      batch[cnt] = wrap(cnt, record);
+      cnt++;
+    }
+    return cnt;
+  }
+
+  /**
+   * Pushes every remaining record straight from the heap scan.
+   */
+  public boolean produce(TupleConsumer consumer) {
+    if (!isOpen) return true;
+    byte[] record;
+    while ((record = next()) != null) {
+      if (!consumer.consume(wrap(0, record))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the next record (the one read ahead, if any) and sets its RID, or
+   * returns null if there are no more.
+   */
+  private byte[] next() {
+    if (null != ahead) {
+      byte[] record = ahead;
+      ahead = null;
+      RID rid = lastRID;
+      lastRID = aheadRID;
+      aheadRID = rid;
+      return record;
+    }
+    if (!reuse || null == lastRID) lastRID = new RID();
+    return read(lastRID);
+  }
+
+  /**
+   * Reads the next record that passes the filter (if any) into the given
+   * RID, or returns null if there are no more.
+   */
+  private byte[] read(RID rid) {
+    while (scan.hasNext()) {
+      byte[] record = scan.getNext(rid);
+      if (null == filter || filter.test(record, filterKey)) {
+        return record;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Wraps a record, in the recycled tuple for the slot if reuse is enabled.
+   */
+  private Tuple wrap(int slot, byte[] record) {
+    if (!reuse) return new Tuple(schema, record);
+    Tuple t = recycle(slot);
+    t.wrap(record);
+    return t;
   }
 
   /**
-   * Gets the RID of the last tuple returned.
+   * Gets the RID of the last tuple returned; with reuse enabled, the same RID
+   * object is overwritten by each call.
    */
   public RID getLastRID() {
     return lastRID;
@@ -0,0 +1,30 @@
+package relop;
+
+import heap.HeapFile;
+
+/**
+ * An iterator that reads its tuples straight from the records of one heap
+ * file, so a hash join over it can size it from the record count, push a
+ * Bloom filter down into it, sample it cheaply, and reuse partitions of it.
+ */
+interface FileSource {
+
+  /**
+   * Gets the heap file read.
+   */
+  public HeapFile getHeapFile();
+
+  /**
+   * Describes how the tuples are made from the records ("records" if they
+   * are the records themselves), so that partitions of them are only reused
+   * by joins reading them the same way.
+   */
+  public String getLayout();
+
+  /**
+   * Drops the records whose key (the given fields of the tuples) is not in
+   * the filter from now on, or none if the filter is null.
+   */
+  public void setFilter(BloomFilter filter, int[] cols);
+
+} // interface FileSource
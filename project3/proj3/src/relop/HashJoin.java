@@ -1,128 +1,1264 @@
 package relop;
 
-import global.RID;
-import global.SearchKey;
+import global.GlobalConst;
 import heap.HeapFile;
-import index.BucketScan;
-import index.HashIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Implements the hash-based join algorithm described in section 14.4.3 of the
- * textbook (3rd edition; see pages 463 to 464). HashIndex is used to partition
- * the tuples into buckets, and HashTableDup is used to store a partition in
- * memory during the matching phase.
+ * Implements the Grace hash join described in section 14.4.3 of the textbook
+ * (3rd edition; see pages 463 to 464). Both inputs are split on the join
+ * column into partitions spilled to temporary heap files, with the fan-out
+ * chosen so that each build (right) partition should fit in the memory
+ * budget; then each build partition in turn is loaded into a JoinHashTable
+ * and probed with the matching left partition. Partitions that still do not fit
+ * are split again with a different hash function; those that splitting does not
+ * help (i.e. a few keys fill them) are joined a chunk of build tuples at a time,
+ * rescanning the probe partition for each chunk.
+ * <p>
+ * In hybrid mode, build partitions stay in memory for as long as the budget
+ * allows, and only the largest are spilled when it runs out; probe tuples for
+ * the resident partitions are joined as they are read, so only the spilled
+ * remainder of either input ever goes to disk. In memory mode, there is no
+ * partitioning at all: the whole build side goes into one table. By default,
+ * the mode is chosen from the estimated size of the build side.
+ * <p>
+ * Before the build side is partitioned, a sample from the start of it is
+ * checked for hot keys, i.e. keys that would fill a good part of a partition
+ * by themselves. Their tuples (from both sides) go in a partition of their
+ * own, so that they do not swamp the keys they would otherwise share one
+ * with; in hybrid mode, it is the last to be spilled, so that probe tuples
+ * with hot keys tend to be joined as they are read. If it does not fit in
+ * memory, it is joined in chunks straight away rather than split again.
+ * <p>
+ * When the build side reads a heap file (see FileSource), its size is
+ * estimated from the record count, and its top-level partitions are kept in
+ * the PartitionRegistry once written, so that a later join of the same file
+ * on the same key probes them instead of partitioning the file again; the
+ * file is still read once more, to check that it has not changed, so this
+ * saves writing the partitions but not reading the file.
+ * <p>
+ * Once the build side is read, a Bloom filter of its keys is pushed into the
+ * left input (if it reads a heap file), which then drops the records that
+ * cannot match before making tuples of them.
+ * <p>
+ * A semi-join or anti-join gives the left tuples that do or do not have a
+ * match, each once and without the right columns; a probe stops at the first
+ * match it finds. Outer joins also give the tuples of one side or both that
+ * have no match, with the other side's fields null: unmatched left tuples are
+ * padded as they are probed, and the build tuples that matched are marked in
+ * a bitmap, so that the rest can be padded once the table is done.
+ * <p>
+ * The spilled partition pairs are independent of each other, so they can be
+ * joined on several threads at once (see setParallelism). As in the exchange
+ * operator, the partition files are only read on the calling thread, since
+ * the buffer manager is not thread-safe. Each worker gets an even share of
+ * the memory budget for the build side of its pair, which is read whole; the
+ * probe side is fed to it a few batches at a time, and its output comes back
+ * in batches through a bounded queue, so that neither is held in memory as a
+ * whole. Pairs that do not fit a worker's share are held back and joined in
+ * chunks on the calling thread once the rest are done.
  */
 public class HashJoin extends Iterator {
 
-	private HeapFile file;
-	private static int globalfnamecounter = 0;
+	/** Default memory budget, in pages. */
+	public static final int DEFAULT_MEMORY_PAGES = 64;
+
+	/** How many times an oversized partition may be split again. */
+	public static final int MAX_LEVELS = 3;
+
+	/** Number of build tuples sampled for hot keys. */
+	public static final int SAMPLE_SIZE = 1000;
+
+	/**
+	 * How the inputs are partitioned.
+	 */
+	public enum Mode {
+
+		/** In memory if the build side is known to fit, otherwise hybrid. */
+		AUTO,
+
+		/** Hash the whole build side into one table, however big it is. */
+		IN_MEMORY,
+
+		/** Spill every partition of both inputs before joining any. */
+		GRACE,
+
+		/** Keep build partitions in memory while they fit; spill the rest. */
+		HYBRID
+
+	} // public enum Mode
+
+	/**
+	 * Which tuples the join gives.
+	 */
+	public enum Type {
+
+		/** Every matching pair. */
+		INNER,
+
+		/** Each left tuple that has a match, once. */
+		SEMI,
+
+		/** Each left tuple that has no match. */
+		ANTI,
+
+		/** Every matching pair, and each unmatched left tuple. */
+		LEFT_OUTER,
+
+		/** Every matching pair, and each unmatched right tuple. */
+		RIGHT_OUTER,
+
+		/** Every matching pair, and each unmatched tuple of either side. */
+		FULL_OUTER
+
+	} // public enum Type
+
+	/**
+	 * Spill statistics, filled in as the join runs.
+	 */
+	public static class Stats {
+
+		/** How the inputs were actually partitioned, i.e. never AUTO. */
+		public Mode mode;
+
+		/** Number of partitions the inputs were split into at the top level. */
+		public int fanout;
+
+		/** Number of non-empty build partitions, at all levels. */
+		public int partitions;
+
+		/** Number of top-level build partitions kept in memory. */
+		public int resident;
+
+		/** Number of partitions that were too big and had to be split again. */
+		public int repartitioned;
+
+		/** Number of partitions joined over budget (i.e. splitting didn't help). */
+		public int oversized;
+
+		/** Number of build chunks the oversized partitions were joined in. */
+		public int chunks;
+
+		/** Deepest level of partitioning reached; the top level is zero. */
+		public int maxLevel;
+
+		/** Tuples written to partition files, from each side. */
+		public long buildSpilled, probeSpilled;
+
+		/** Pages written to partition files. */
+		public long pagesSpilled;
+
+		/** Left records dropped by the Bloom filter. */
+		public long filtered;
+
+		/** Number of hot keys found in the build sample. */
+		public int hotKeys;
+
+		/** Tuples with hot keys, from each side. */
+		public long hotBuild, hotProbe;
+
+		/** Number of build tuples in the largest (other) top-level partition. */
+		public long largest;
+
+		/** Size of the largest (other) top-level partition over the average. */
+		public double skew;
+
+		/** True if the build side's partitions were those of an earlier join. */
+		public boolean reused;
+
+		/**
+		 * Returns a string representation of the statistics.
+		 */
+		public String toString() {
+			return "mode " + mode + ", fanout " + fanout + ", partitions "
+					+ partitions
+					+ ", resident " + resident + ", repartitioned "
+					+ repartitioned + ", oversized " + oversized + " (" + chunks
+					+ " chunks), levels "
+					+ (maxLevel + 1) + ", spilled " + buildSpilled + " build / " + probeSpilled
+					+ " probe tuples in " + pagesSpilled + " pages, filtered "
+					+ filtered + ", hot keys " + hotKeys + " (" + hotBuild
+					+ " build / " + hotProbe + " probe tuples), skew "
+					+ String.format("%.2f", skew)
+					+ (reused ? ", reused partitions" : "");
+		}
+
+	} // public static class Stats
+
+	/**
+	 * A partition pair being joined by a worker: the build side, read whole,
+	 * and the probe side, read on the calling thread and fed to the worker in
+	 * batches as it keeps up (an empty one ends it).
+	 */
+	private static class Task {
+		Partition part;
+		ArrayList<Tuple> build;
+		FileScan probe;
+		LinkedBlockingQueue<Tuple[]> input = new LinkedBlockingQueue<Tuple[]>(
+				QUEUE_BATCHES);
+		int outstanding;
+		boolean fed;
+		volatile boolean cancelled;
+	}
+
+	/**
+	 * Output of a worker: up to a batch of joined tuples, and whether it
+	 * finishes a batch of probe tuples, or the whole pair.
+	 */
+	private static class Result {
+		Task task;
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		boolean ack, last;
+		RuntimeException error;
+	}
+
+	/** How many batches may wait in each queue between threads, per worker. */
+	private static final int QUEUE_BATCHES = 2;
+
+	/**
+	 * A pair of matching partitions, spilled to temporary heap files; in
+	 * hybrid mode, the build side may be held in memory instead.
+	 */
+	private static class Partition {
+		SpillFile build, probe;
+		int buildCount, probeCount;
+		int level;
+		ArrayList<Tuple> resident;
+		boolean reused;
+
+		/** True if the build file belongs to the PartitionRegistry. */
+		boolean registered;
+
+		/** True if it holds the hot keys, which splitting cannot separate. */
+		boolean hot;
+	}
+
 	private Iterator left = null;
 	private Iterator right = null;
-	private Integer lcol = null;
-	private Integer rcol = null;
-	// private Schema schema;
+	private int[] lcols = null;
+	private int[] rcols = null;
+
+	/** Where the join key is in the left and right tuples. */
+	private JoinHashTable.Key lkey = null;
+	private JoinHashTable.Key rkey = null;
+	private int memoryPages;
+	private Type type;
+	private Mode mode = Mode.AUTO;
+	private boolean bloom = true;
+	private boolean skewAware = true;
+	private boolean reusePartitions = true;
 
-	private IndexScan leftBucketScan = null;
-	private IndexScan rightBucketScan = null;
-	private int leftHashKey = -1;
-	private int rightHashKey = -2;
+	/** Hashes of the hot keys of the build side, sorted, or null if none. */
+	private int[] hotKeys = null;
 
-	private Tuple[] matchingTuples = null;
-	private int indexInTupleArray = 0;
+	/** Digest of the build side as partitioned, for the PartitionRegistry. */
+	private long buildDigest;
 
-	private Tuple rightTupleToMatch = null;
-	private Tuple leftTupleToMatch = null;
+	/** The partitioning registered or adopted, to release when done. */
+	private PartitionRegistry.Entry entry = null;
 
-	private HashTableDup hashTableDup = null;
+	/**
+	 * For a join probing another's build side, the other join; for a join
+	 * being probed that way, the table it shares.
+	 */
+	private HashJoin owner = null;
+	private JoinHashTable shared = null;
 
-	// TODO : Assume join is always equi
 	private boolean isOpen = false;
 
-	private static int fileNameCtr = 0;
-	private ScanType leftScanType = null;;
-	private ScanType rightScanType = null;
+	// true once both inputs have been partitioned
+	private boolean built = false;
+
+	/** Keys of the build side, collected while it is first read, or null. */
+	private int[] buildKeys = null;
+	private int buildKeyCount = 0;
+
+	/** The Bloom filter pushed into the left input, or null. */
+	private BloomFilter filter = null;
+
+	private Stats stats = new Stats();
+
+	/** Partition pairs still waiting to be joined. */
+	private ArrayList<Partition> pending = null;
+
+	/** The build side of the current partition, hashed on the join column. */
+	private JoinHashTable table = null;
+
+	/** Scan over the probe side of the current partition. */
+	private FileScan probeScan = null;
+
+	/** True while the left input is being streamed through the table. */
+	private boolean streaming = false;
+
+	/**
+	 * The top-level partitions while streaming in hybrid mode, or null;
+	 * only the resident ones are in the table.
+	 */
+	private Partition[] streamed = null;
+
+	/** The current probe tuple, and where we are in its matches. */
+	private Tuple probeTuple = null;
+	private int match = JoinHashTable.NONE;
+
+	/** A tuple to give by itself, i.e. not one of a run of matches. */
+	private Tuple lone = null;
+
+	/** For outer joins, all-null tuples to pad the left and right side with. */
+	private Tuple nullLeft = null;
+	private Tuple nullRight = null;
+
+	/** Which build tuples in the table have matched, if it matters. */
+	private BitSet matched = new BitSet();
+
+	/**
+	 * The oversized partition being joined a chunk at a time, the rest of its
+	 * build side, and whether the current chunk is the last.
+	 */
+	private Partition chunked = null;
+	private FileScan chunkScan = null;
+	private boolean lastChunk;
+
+	/**
+	 * Which probe tuples of the oversized partition have matched in earlier
+	 * chunks, if it matters, and the position of the next one.
+	 */
+	private BitSet probeMatched = new BitSet();
+	private int probePos;
+
+	/** The partition pair being joined on this thread, to delete when done. */
+	private Partition joining = null;
+
+	/** Oversized partition pairs held back from the workers. */
+	private ArrayList<Partition> deferred = null;
+
+	/** A table done with, whose unmatched build tuples are being given. */
+	private JoinHashTable unmatched = null;
+	private int unmatchedPos;
+
+	/** Number of threads joining the spilled partition pairs. */
+	private int parallelism = 1;
+
+	/** The workers, their output, and the pairs they are joining. */
+	private ExecutorService pool = null;
+	private LinkedBlockingQueue<Result> done = null;
+	private ArrayList<Task> running = new ArrayList<Task>();
+
+	/** The output batch being handed out, and where we are in it. */
+	private Result current = null;
+	private int currentPos;
 
 	private Tuple nextTuple = null;
 
 	/**
 	 * Constructs a hash join, given the left and right iterators and which
-	 * columns to match (relative to their individual schemas).
+	 * columns to match (relative to their individual schemas). Nothing is
+	 * read yet: the inputs are partitioned on the first request for a tuple.
 	 */
 	public HashJoin(Iterator left, Iterator right, Integer lcol, Integer rcol) {
-		this.lcol = lcol; // = new Integer(lcol);
-		this.rcol = rcol; // = new Integer(rcol);
-		left.restart();
-		right.restart();
-		leftScanType = ScanType.getScanType(left);
-		rightScanType = ScanType.getScanType(right);
-		this.schema = Schema.join(left.schema, right.schema);
+		this(left, right, new int[] { lcol }, new int[] { rcol },
+				DEFAULT_MEMORY_PAGES);
+	}
+
+	/**
+	 * Constructs a hash join, given the left and right iterators, which
+	 * columns to match, and the memory budget in pages.
+	 */
+	public HashJoin(Iterator left, Iterator right, Integer lcol,
+			Integer rcol, int memoryPages) {
+		this(left, right, new int[] { lcol }, new int[] { rcol }, memoryPages);
+	}
 
-		createBucketScan(left, right, lcol, rcol);
+	/**
+	 * Constructs a hash join on a composite key, given the left and right
+	 * iterators and which columns of each make up the key (most significant
+	 * first); tuples join if all their key columns match.
+	 */
+	public HashJoin(Iterator left, Iterator right, int[] lcols, int[] rcols) {
+		this(left, right, lcols, rcols, DEFAULT_MEMORY_PAGES);
+	}
+
+	/**
+	 * Constructs a hash join on a composite key, given the left and right
+	 * iterators, which columns make up the key, and the memory budget in
+	 * pages.
+	 */
+	public HashJoin(Iterator left, Iterator right, int[] lcols, int[] rcols,
+			int memoryPages) {
+		this(left, right, lcols, rcols, memoryPages, Type.INNER);
+	}
 
-		// TODO just assign ref or create new obj
+	/**
+	 * Constructs a hash join of the given type, given the left and right
+	 * iterators and which columns to match.
+	 */
+	public HashJoin(Iterator left, Iterator right, Integer lcol,
+			Integer rcol, Type type) {
+		this(left, right, new int[] { lcol }, new int[] { rcol },
+				DEFAULT_MEMORY_PAGES, type);
+	}
+
+	/**
+	 * Constructs a hash join of the given type, given the left and right
+	 * iterators, which columns make up the key, and the memory budget in
+	 * pages; semi-joins and anti-joins have the schema of the left input.
+	 */
+	public HashJoin(Iterator left, Iterator right, int[] lcols, int[] rcols,
+			int memoryPages, Type type) {
+		if (memoryPages < 2) {
+			throw new IllegalArgumentException("memory budget too small");
+		}
+		if (lcols.length == 0 || lcols.length != rcols.length) {
+			throw new IllegalArgumentException("key columns do not pair up");
+		}
 		this.left = left;
 		this.right = right;
+		this.lcols = lcols.clone();
+		this.rcols = rcols.clone();
+		lkey = new JoinHashTable.Key(left.schema, lcols);
+		rkey = new JoinHashTable.Key(right.schema, rcols);
+		this.memoryPages = memoryPages;
+		this.type = type;
+		if (type == Type.SEMI || type == Type.ANTI) {
+			this.schema = left.schema;
+		} else {
+			this.schema = Schema.join(left.schema, right.schema);
+			nullLeft = Tuple.nulls(left.schema);
+			nullRight = Tuple.nulls(right.schema);
+		}
+		isOpen = true;
+	}
+
+	/**
+	 * Constructs a join that probes the build side of another join with a
+	 * different left input (of the same schema), e.g. one for each worker of
+	 * an Exchange. The other join's right input is read into one table the
+	 * first time any of these joins is asked for a tuple (on that thread, so
+	 * run one on the thread that reads the files first); the table is then
+	 * shared read-only, and the right input is left to the other join. The
+	 * table has to fit in the other join's memory budget, since it cannot be
+	 * partitioned for all of the probing joins at once.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the join gives unmatched right tuples, which would have
+	 *             to be tracked across all of the probing joins, or if the
+	 *             right input is known not to fit in memory
+	 */
+	public HashJoin(Iterator left, HashJoin build) {
+		this(left, build.right, build.lcols, build.rcols, build.memoryPages,
+				build.type);
+		if (keepsRight()) {
+			throw new IllegalArgumentException(
+					"cannot share the build side of a right or full outer join");
+		}
+		long bytes = estimateBytes(right);
+		if (bytes > (long) memoryPages * GlobalConst.PAGE_SIZE) {
+			throw new IllegalArgumentException(
+					"build side too large to share in memory");
+		}
+		owner = build;
+	}
+
+	/**
+	 * Reads the right input into a table for probing joins to share, unless
+	 * that is already done.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the right input does not fit in the memory budget
+	 */
+	private synchronized JoinHashTable share() {
+		if (null == shared) {
+			right.restart();
+			shared = load(right, (long) memoryPages * GlobalConst.PAGE_SIZE);
+			if (null == shared) {
+				right.restart();
+				throw new IllegalStateException(
+						"build side too large to share in memory");
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Gets the spill statistics; complete once the join is exhausted.
+	 */
+	public Stats getStats() {
+		if (null != filter) {
+			stats.filtered = filter.getRejected();
+		}
+		return stats;
+	}
+
+	/**
+	 * Gets which tuples the join gives.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns true if left tuples without a match are wanted.
+	 */
+	private boolean keepsLeft() {
+		return type == Type.ANTI || type == Type.LEFT_OUTER
+				|| type == Type.FULL_OUTER;
+	}
+
+	/**
+	 * Returns true if right tuples without a match are wanted.
+	 */
+	private boolean keepsRight() {
+		return type == Type.RIGHT_OUTER || type == Type.FULL_OUTER;
+	}
+
+	/**
+	 * Gets how the inputs are partitioned.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Sets how the inputs are partitioned; takes effect the next time the
+	 * join starts.
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Enables or disables pushing a Bloom filter into the left input; takes
+	 * effect the next time the join starts.
+	 */
+	public void setBloomFilter(boolean bloom) {
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Enables or disables looking for hot keys and keeping them apart; takes
+	 * effect the next time the join starts.
+	 */
+	public void setSkewHandling(boolean skewAware) {
+		this.skewAware = skewAware;
+	}
+
+	/**
+	 * Enables or disables sharing the build side's partitions with later
+	 * joins through the PartitionRegistry; takes effect the next time the
+	 * join starts.
+	 */
+	public void setPartitionReuse(boolean reusePartitions) {
+		this.reusePartitions = reusePartitions;
+	}
+
+	/**
+	 * Sets how many threads join the spilled partition pairs; one (the
+	 * default) joins them on the calling thread. The memory budget is split
+	 * evenly between them, so the inputs are partitioned finer to match. Set
+	 * it before the join starts.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if less than one
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid degree of parallelism");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Partitions both inputs, unless that is already done; called before the
+	 * first tuple is produced, so that building or explaining a plan (or
+	 * abandoning it) costs nothing.
+	 */
+	private void build() {
+		if (built || !isOpen) {
+			return;
+		}
+		stats = new Stats();
+		pending = new ArrayList<Partition>();
 		left.restart();
+		if (null != owner) {
+			// the owner builds the table for the first join to get here
+			stats.mode = Mode.IN_MEMORY;
+			stats.fanout = 1;
+			table = owner.share();
+			streaming = true;
+			built = true;
+			return;
+		}
 		right.restart();
+		long bytes = estimateBytes(right);
+		// unmatched left tuples are exactly the ones the filter would drop
+		if (bloom && !keepsLeft() && left instanceof FileSource) {
+			buildKeys = new int[BATCH_SIZE];
+			buildKeyCount = 0;
+		}
+		stats.mode = mode;
+		if (mode == Mode.AUTO) {
+			boolean fits = bytes >= 0
+					&& bytes <= (long) memoryPages * GlobalConst.PAGE_SIZE;
+			stats.mode = fits ? Mode.IN_MEMORY : Mode.HYBRID;
+		}
+		stats.fanout = chooseFanout(bytes);
+		hotKeys = null;
+		if (stats.mode == Mode.IN_MEMORY) {
+			stats.fanout = 1;
+			table = load(right);
+			if (!table.isEmpty()) {
+				stats.partitions = stats.resident = 1;
+			}
+			pushFilter();
+			streaming = true;
+		} else if (adoptPartitions()) {
+			stats.mode = Mode.GRACE;
+		} else if (stats.mode == Mode.HYBRID) {
+			if (stats.fanout > 1) {
+				// smaller partitions, so that more of the budget stays in use
+				stats.fanout = Math.min(memoryPages - 1, stats.fanout * 4);
+			}
+			findHotKeys(stats.fanout);
+			streamed = partitionBuild(right, stats.fanout, 0, true);
+			table = new JoinHashTable(right.schema, rcols);
+			for (Partition p : streamed) {
+				if (null != p.resident && !p.resident.isEmpty()) {
+					for (Tuple t : p.resident) {
+						table.add(t);
+					}
+					stats.resident++;
+				}
+				p.resident = null;
+			}
+			pushFilter();
+			streaming = true;
+		} else {
+			findHotKeys(stats.fanout);
+			partition(right, left, stats.fanout, 0);
+		}
+		built = true;
+	}
 
+	/**
+	 * Notes a key of the build side, if they are being collected.
+	 */
+	private void noteKey(Tuple tuple) {
+		if (null == buildKeys || rkey.isNull(tuple.getData())) {
+			return;
+		}
+		if (buildKeyCount == buildKeys.length) {
+			buildKeys = Arrays.copyOf(buildKeys, buildKeyCount * 2);
+		}
+		buildKeys[buildKeyCount++] = JoinHashTable.hash(tuple.getData(), rkey);
 	}
 
-	public void createBucketScan(Iterator left, Iterator right, int lcol,
-			int rcol) {
+	/**
+	 * Makes a Bloom filter of the collected build keys (if any) and pushes it
+	 * into the left input.
+	 */
+	private void pushFilter() {
+		if (null == buildKeys) {
+			return;
+		}
+		filter = new BloomFilter(buildKeyCount);
+		for (int i = 0; i < buildKeyCount; i++) {
+			filter.add(buildKeys[i]);
+		}
+		buildKeys = null;
+		((FileSource) left).setFilter(filter, lcols);
+	}
 
-		this.leftBucketScan = createBucketScan(left, lcol, leftScanType);
-		this.rightBucketScan = createBucketScan(right, rcol, rightScanType);
+	/**
+	 * Takes the Bloom filter (if any) back out of the left input.
+	 */
+	private void dropFilter() {
+		if (null == filter) {
+			return;
+		}
+		stats.filtered = filter.getRejected();
+		filter = null;
+		((FileSource) left).setFilter(null, lcols);
+	}
 
+	/**
+	 * Samples the start of the build side for hot keys, i.e. keys that would
+	 * fill more than half of an average partition (of the given number) by
+	 * themselves. Only done for scans, which are cheap to restart.
+	 */
+	private void findHotKeys(int fanout) {
+		if (!skewAware || fanout < 2 || !(right instanceof FileSource)) {
+			return;
+		}
+		HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		int sampled = 0;
+		Tuple[] batch = new Tuple[BATCH_SIZE];
+		while (sampled < SAMPLE_SIZE) {
+			int n = right.nextBatch(batch);
+			if (0 == n) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				Integer key = JoinHashTable.hash(batch[i].getData(), rkey);
+				Integer count = counts.get(key);
+				counts.put(key, (null == count) ? 1 : count + 1);
+			}
+			sampled += n;
+		}
+		right.restart();
+		int threshold = Math.max(2, sampled / (2 * fanout) + 1);
+		int[] hot = new int[counts.size()];
+		int cnt = 0;
+		for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+			if (e.getValue() >= threshold) {
+				hot[cnt++] = e.getKey();
+			}
+		}
+		if (cnt > 0) {
+			hotKeys = Arrays.copyOf(hot, cnt);
+			Arrays.sort(hotKeys);
+			stats.hotKeys = cnt;
+		}
+	}
+
+	/**
+	 * Records the size of the hot partition (if any) and how uneven the
+	 * others are, given the top-level partitions of the build side.
+	 */
+	private void noteSkew(Partition[] parts, int fanout) {
+		long total = 0;
+		int nonEmpty = 0;
+		for (int i = 0; i < fanout; i++) {
+			total += parts[i].buildCount;
+			stats.largest = Math.max(stats.largest, parts[i].buildCount);
+			if (parts[i].buildCount > 0) {
+				nonEmpty++;
+			}
+		}
+		if (parts.length > fanout) {
+			stats.hotBuild = parts[fanout].buildCount;
+		}
+		if (total > 0) {
+			stats.skew = (double) stats.largest * nonEmpty / total;
+		}
 	}
 
-	private IndexScan createBucketScan(Iterator iter, int col,
-			ScanType scanType) {
-		switch (scanType) {
-		case FILESCAN:
-			HashIndex hashIdx = new HashIndex("HashFileName" + fileNameCtr++);
-			hashAndSave(iter, col, hashIdx, null);
-			return new IndexScan(iter.schema, hashIdx, ((FileScan) iter).getHeapFile());
-			// break; 
-		case KEYSCAN:
-			return new IndexScan(iter.schema,((KeyScan) iter).getHashIndex(),((KeyScan) iter).getHeapFile()); 
-		case INDEXSCAN:
-			return ((IndexScan) iter);
-		default:
-//			HashIndex joinHashIdx = new HashIndex("HashFileName"
-//					+ fileNameCtr++);
-			HashIndex joinHashIdx = new HashIndex(null);
-			HeapFile heapFile = new HeapFile(null);
-			hashAndSave(iter, col, joinHashIdx, heapFile);
-			return new IndexScan(iter.schema, joinHashIdx, heapFile);
+	/**
+	 * Estimates the size of an input in bytes, or -1 if unknown.
+	 */
+	private static long estimateBytes(Iterator iter) {
+		if (!(iter instanceof FileSource)) {
+			return -1;
+		}
+		HeapFile file = ((FileSource) iter).getHeapFile();
+		return (long) file.getRecCnt() * iter.schema.getLength();
+	}
 
+	/**
+	 * Chooses how many partitions to split a build input of the given size
+	 * into (-1 if unknown), so that each should fit in memory with some slack
+	 * for uneven keys; at most one per page of memory, less one for reading.
+	 */
+	private int chooseFanout(long buildBytes) {
+		int max = memoryPages - 1;
+		if (buildBytes < 0) {
+			return max;
 		}
-//		return null;
+		long budget = budget();
+		long parts = (buildBytes + buildBytes / 4 + budget - 1) / budget;
+		return (int) Math.max(1, Math.min(max, parts));
+	}
+
+	/**
+	 * Hashes a join key for partitioning at the given level; every level
+	 * mixes in a different seed, so that splitting a partition again spreads
+	 * its tuples out instead of sending them all to the same place.
+	 */
+	private static int hash(int key, int level) {
+		int h = key ^ (level * 0x9e3779b9);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
 	}
 
-	public void hashAndSave(Iterator input, int colNo, HashIndex hd, HeapFile hf) {
+	/**
+	 * Reads an input into a new table hashed on the join column, copying the
+	 * records if the input recycles them.
+	 */
+	private JoinHashTable load(Iterator input) {
+		return load(input, Long.MAX_VALUE);
+	}
 
-		if (input instanceof FileScan) {
-			FileScan fs = (FileScan) input;
-			while (fs.hasNext()) {
-				Tuple t = input.getNext();
-				Object colVal = t.getField(colNo);
-				hd.insertEntry(new SearchKey(colVal), fs.getLastRID());
+	/**
+	 * Reads an input into a new table as above, giving up (and returning
+	 * null) once it holds more than the given number of bytes.
+	 */
+	private JoinHashTable load(Iterator input, long limit) {
+		long bytes = 0;
+		JoinHashTable table = new JoinHashTable(right.schema, rcols);
+		Tuple[] batch = new Tuple[BATCH_SIZE];
+		for (int n = input.nextBatch(batch); n > 0; n = input.nextBatch(batch)) {
+			for (int i = 0; i < n; i++) {
+				Tuple t = batch[i];
+				if (input.reuse) {
+					t = new Tuple(right.schema, t.getData().clone());
+				}
+				table.add(t);
+				noteKey(t);
 			}
-		} else if (input instanceof HashJoin) {
-			HashJoin hj = (HashJoin) input;
-			int debugCounter = 0;
-			while (hj.hasNext()) {
-				Tuple t = input.getNext();
-				Object colVal = t.getField(colNo);
-				RID rid = hf.insertRecord(t.getData());
-				hd.insertEntry(new SearchKey(colVal), rid);
-				debugCounter++;
+			bytes += (long) n * right.schema.getLength();
+			if (bytes > limit) {
+				return null;
 			}
-			hj.setHeapFile(hf);
+		}
+		return table;
+	}
+
+	/**
+	 * Splits both inputs into the given number of partition pairs at the
+	 * given level, and queues the pairs to be joined.
+	 */
+	private void partition(Iterator build, Iterator probe, int fanout,
+			int level) {
+		Partition[] parts = partitionBuild(build, fanout, level, false);
+		if (0 == level) {
+			share(parts, fanout);
+		}
+		pushFilter();
+		partitionProbe(probe, parts, level, fanout);
+		dropFilter();
+		queue(parts);
+	}
 
+	/**
+	 * Splits the probe input to match the given partitions of the build side.
+	 */
+	private void partitionProbe(Iterator probe, Partition[] parts, int level,
+			int fanout) {
+		Tuple[] batch = new Tuple[BATCH_SIZE];
+		for (int n = probe.nextBatch(batch); n > 0; n = probe.nextBatch(batch)) {
+			for (int i = 0; i < n; i++) {
+				int b = bucket(batch[i], lkey, level, fanout);
+				if (b == fanout) {
+					stats.hotProbe++;
+				}
+				spillProbe(parts[b], batch[i]);
+			}
+		}
+	}
+
+	/**
+	 * Registers the top-level partitions of the build side, if it reads a
+	 * heap file, for later joins to reuse.
+	 */
+	private void share(Partition[] parts, int fanout) {
+		if (!reusePartitions || !(right instanceof FileSource)) {
+			return;
+		}
+		PartitionRegistry.Entry e = new PartitionRegistry.Entry();
+		e.key = rkey;
+		e.digest = buildDigest;
+		e.fanout = fanout;
+		e.hotKeys = hotKeys;
+		e.builds = new SpillFile[parts.length];
+		e.counts = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			e.builds[i] = parts[i].build;
+			e.counts[i] = parts[i].buildCount;
+			parts[i].registered = true;
+		}
+		if (null != buildKeys) {
+			e.keys = Arrays.copyOf(buildKeys, buildKeyCount);
+		}
+		FileSource source = (FileSource) right;
+		PartitionRegistry.register(source.getHeapFile(), source.getLayout(),
+				right.schema, e);
+		entry = e;
+	}
+
+	/**
+	 * Probes the registered partitions of the build side instead of making
+	 * new ones, if it reads a heap file that was partitioned (read the same
+	 * way) on the same columns before, at least as finely, and has not
+	 * changed since, i.e. reading it again gives the same digest; returns
+	 * false if there are none.
+	 */
+	private boolean adoptPartitions() {
+		if (!reusePartitions || !(right instanceof FileSource)) {
+			return false;
+		}
+		FileSource source = (FileSource) right;
+		PartitionRegistry.Entry e = PartitionRegistry.find(
+				source.getHeapFile(), source.getLayout(), right.schema, rkey);
+		if (null == e) {
+			return false;
+		}
+		if (e.fanout < stats.fanout) {
+			PartitionRegistry.release(e);
+			return false;
+		}
+		long digest = 0;
+		Tuple[] batch = new Tuple[BATCH_SIZE];
+		for (int n = right.nextBatch(batch); n > 0; n = right.nextBatch(batch)) {
+			for (int i = 0; i < n; i++) {
+				digest += PartitionRegistry.digest(batch[i].getData());
+			}
+		}
+		if (digest != e.digest) {
+			// changed in place; partition it again
+			PartitionRegistry.release(e);
+			PartitionRegistry.invalidate(source.getHeapFile());
+			right.restart();
+			return false;
+		}
+		entry = e;
+		stats.reused = true;
+		stats.fanout = e.fanout;
+		hotKeys = e.hotKeys;
+		stats.hotKeys = (null == hotKeys) ? 0 : hotKeys.length;
+		Partition[] parts = new Partition[e.builds.length];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new Partition();
+			parts[i].build = e.builds[i];
+			parts[i].buildCount = e.counts[i];
+			parts[i].reused = true;
+			parts[i].registered = true;
+		}
+		parts[parts.length - 1].hot = parts.length > e.fanout;
+		noteSkew(parts, e.fanout);
+		if (null != buildKeys && null != e.keys) {
+			buildKeys = e.keys;
+			buildKeyCount = e.keys.length;
 		} else {
-			throw new UnsupportedOperationException("Not implemented");
+			buildKeys = null;
+		}
+		pushFilter();
+		partitionProbe(left, parts, 0, e.fanout);
+		dropFilter();
+		queue(parts);
+		return true;
+	}
+
+	/**
+	 * Splits the build input into the given number of partitions at the given
+	 * level, plus one for the hot keys at the top level (if any). If hybrid,
+	 * partitions are kept in memory until they outgrow the budget, and then
+	 * the largest resident one is spilled, until they fit again; the one for
+	 * the hot keys goes last.
+	 */
+	private Partition[] partitionBuild(Iterator build, int fanout, int level,
+			boolean hybrid) {
+		int count = (0 == level && null != hotKeys) ? fanout + 1 : fanout;
+		Partition[] parts = new Partition[count];
+		for (int i = 0; i < count; i++) {
+			parts[i] = new Partition();
+			parts[i].level = level;
+			if (hybrid) {
+				parts[i].resident = new ArrayList<Tuple>();
+			}
+		}
+		parts[count - 1].hot = count > fanout;
+		final long budget = (long) memoryPages * GlobalConst.PAGE_SIZE;
+		long length = right.schema.getLength();
+		long residentBytes = 0;
+		boolean digest = 0 == level && !hybrid && reusePartitions
+				&& right instanceof FileSource;
+		buildDigest = 0;
+		Tuple[] batch = new Tuple[BATCH_SIZE];
+		for (int n = build.nextBatch(batch); n > 0; n = build.nextBatch(batch)) {
+			for (int i = 0; i < n; i++) {
+				noteKey(batch[i]);
+				if (digest) {
+					buildDigest += PartitionRegistry.digest(batch[i].getData());
+				}
+				Partition p = parts[bucket(batch[i], rkey, level, fanout)];
+				p.buildCount++;
+				if (null == p.resident) {
+					if (null == p.build) {
+						p.build = new SpillFile();
+					}
+					p.build.insertRecord(batch[i].getData());
+					continue;
+				}
+
+				// keep it, copying the record if the input recycles it
+				Tuple t = batch[i];
+				if (build.reuse) {
+					t = new Tuple(right.schema, t.getData().clone());
+				}
+				p.resident.add(t);
+				residentBytes += length;
+				while (residentBytes > budget) {
+					Partition victim = null;
+					for (int j = 0; j < fanout; j++) {
+						Partition q = parts[j];
+						if (null != q.resident && (null == victim
+								|| q.resident.size() > victim.resident.size())) {
+							victim = q;
+						}
+					}
+					if (null == victim && count > fanout) {
+						victim = parts[fanout];
+					}
+					if (null == victim || null == victim.resident) {
+						break;
+					}
+					residentBytes -= victim.resident.size() * length;
+					victim.build = new SpillFile();
+					for (Tuple v : victim.resident) {
+						victim.build.insertRecord(v.getData());
+					}
+					victim.resident = null;
+				}
+			}
+		}
+		if (0 == level) {
+			noteSkew(parts, fanout);
+		}
+		return parts;
+	}
+
+	/**
+	 * Writes a probe tuple to its partition, unless nothing on the build side
+	 * can match it and it is only wanted with a match.
+	 */
+	private void spillProbe(Partition p, Tuple tuple) {
+		if (0 == p.buildCount && !keepsLeft()) {
+			return;
+		}
+		if (null == p.probe) {
+			p.probe = new SpillFile();
+		}
+		p.probe.insertRecord(tuple.getData());
+		p.probeCount++;
+	}
+
+	/**
+	 * Records the partitions in the statistics, and queues the spilled pairs
+	 * that can produce something.
+	 */
+	private void queue(Partition[] parts) {
+		stats.maxLevel = Math.max(stats.maxLevel, parts[0].level);
+		for (Partition p : parts) {
+			if (p.buildCount > 0) {
+				stats.partitions++;
+			}
+			if (null == p.build && null == p.probe) {
+				// resident, or empty
+				continue;
+			}
+			if (!p.reused) {
+				stats.buildSpilled += p.buildCount;
+				stats.pagesSpilled += pages(p.buildCount, right.schema);
+			}
+			stats.probeSpilled += p.probeCount;
+			stats.pagesSpilled += pages(p.probeCount, left.schema);
+			if (p.probeCount > 0 || keepsRight()) {
+				pending.add(p);
+			} else {
+				release(p);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of a partition pair that is joined (or not needed),
+	 * except a build file that belongs to the PartitionRegistry.
+	 */
+	private static void release(Partition p) {
+		if (null == p) {
+			return;
+		}
+		if (null != p.build && !p.registered) {
+			p.build.close();
+		}
+		if (null != p.probe) {
+			p.probe.close();
+		}
+		p.build = null;
+		p.probe = null;
+	}
+
+	/**
+	 * Gets which of the given number of partitions a tuple belongs in; at the
+	 * top level, a tuple with a hot key belongs in the extra one after them.
+	 */
+	private int bucket(Tuple tuple, JoinHashTable.Key key, int level,
+			int fanout) {
+		int k = JoinHashTable.hash(tuple.getData(), key);
+		if (0 == level && null != hotKeys
+				&& Arrays.binarySearch(hotKeys, k) >= 0) {
+			return fanout;
+		}
+		int h = hash(k, level);
+		return (h & 0x7fffffff) % fanout;
+	}
+
+	/**
+	 * Gets the number of pages needed for the given number of tuples.
+	 */
+	private static long pages(long count, Schema schema) {
+		long bytes = count * schema.getLength();
+		return (bytes + GlobalConst.PAGE_SIZE - 1) / GlobalConst.PAGE_SIZE;
+	}
+
+	/**
+	 * Moves on to the next partition pair that fits in memory, splitting
+	 * oversized ones again on the way; returns false when none are left.
+	 */
+	private boolean nextPartition() {
+		if (null != probeScan) {
+			probeScan.close();
+			probeScan = null;
+		}
+		table = null;
+		release(joining);
+		joining = null;
+		Partition p = nextPending();
+		if (null == p) {
+			return false;
+		}
+
+		// load the build side (if any), and start scanning the probe side
+		if (!fits(p)) {
+			chunk(p);
+			return true;
+		}
+		joining = p;
+		if (null == p.build) {
+			table = new JoinHashTable(right.schema, rcols);
+		} else {
+			FileScan scan = new FileScan(right.schema, p.build);
+			table = load(scan);
+			scan.close();
+		}
+		if (null != p.probe) {
+			probeScan = new FileScan(left.schema, p.probe);
+		}
+		return true;
+	}
+
+	/**
+	 * Starts joining an oversized partition pair a chunk at a time.
+	 */
+	private void chunk(Partition p) {
+		joining = p;
+		chunked = p;
+		chunkScan = new FileScan(right.schema, p.build);
+		probeMatched.clear();
+		nextChunk();
+	}
+
+	/**
+	 * Loads the next chunk of the oversized partition's build side, as many
+	 * tuples as fit in the budget, and starts scanning its probe side again;
+	 * returns false (and is done with the partition) if none are left.
+	 */
+	private boolean nextChunk() {
+		if (null == chunked) {
+			return false;
+		}
+		if (null != probeScan) {
+			probeScan.close();
+			probeScan = null;
+		}
+		if (!chunkScan.hasNext()) {
+			chunkScan.close();
+			chunkScan = null;
+			chunked = null;
+			probeMatched.clear();
+			return false;
+		}
+		long budget = (long) memoryPages * GlobalConst.PAGE_SIZE;
+		long max = Math.max(1, budget / right.schema.getLength());
+		table = new JoinHashTable(right.schema, rcols);
+		while (table.size() < max && chunkScan.hasNext()) {
+			Tuple t = chunkScan.getNext();
+			if (chunkScan.reuse) {
+				t = new Tuple(right.schema, t.getData().clone());
+			}
+			table.add(t);
+		}
+		lastChunk = !chunkScan.hasNext();
+		stats.chunks++;
+		if (null != chunked.probe) {
+			probeScan = new FileScan(left.schema, chunked.probe);
+		}
+		probePos = 0;
+		return true;
+	}
+
+	/**
+	 * Returns true if the build side of a partition pair fits in the budget.
+	 */
+	private boolean fits(Partition p) {
+		return (long) p.buildCount * right.schema.getLength() <= budget();
+	}
+
+	/**
+	 * Gets the memory budget in bytes for joining one partition pair: all of
+	 * it, or an even share of it for each worker.
+	 */
+	private long budget() {
+		return (long) memoryPages * GlobalConst.PAGE_SIZE / parallelism;
+	}
+
+	/**
+	 * Takes the next partition pair off the queue, splitting oversized ones
+	 * again on the way (except the one of hot keys, which would not get any
+	 * smaller), or returns null when none are left; one that is still
+	 * oversized is to be joined in chunks.
+	 */
+	private Partition nextPending() {
+		while (!pending.isEmpty()) {
+			Partition p = pending.remove(pending.size() - 1);
+			if (!fits(p) && null != p.probe) {
+				if (!p.hot && p.level < MAX_LEVELS && repartition(p)) {
+					continue;
+				}
+				stats.oversized++;
+			}
+			return p;
+		}
+		return null;
+	}
+
+	/**
+	 * Splits an oversized partition pair one level further; returns false
+	 * (leaving it alone) if that would not make its build side any smaller,
+	 * i.e. its tuples all share very few keys.
+	 */
+	private boolean repartition(Partition p) {
+		int fanout = chooseFanout((long) p.buildCount
+				* right.schema.getLength());
+		int before = pending.size();
+		FileScan build = new FileScan(right.schema, p.build);
+		FileScan probe = new FileScan(left.schema, p.probe);
+		partition(build, probe, Math.max(2, fanout), p.level + 1);
+		build.close();
+		probe.close();
+		stats.repartitioned++;
+		for (int i = before; i < pending.size(); i++) {
+			if (pending.get(i).buildCount == p.buildCount) {
+				// no progress; drop the split and join this one as it is
+				while (pending.size() > before) {
+					release(pending.remove(pending.size() - 1));
+				}
+				return false;
+			}
 		}
+		release(p);
+		return true;
 	}
 
 	/**
@@ -131,32 +1267,75 @@ public class HashJoin extends Iterator {
 	 */
 	public void explain(int depth) {
 		indent(depth);
-	    System.out.println("HASH JOIN");
+		System.out.println("HASH " + (type == Type.INNER ? "" : type + " ")
+				+ "JOIN (" + mode.name().toLowerCase() + ", " + memoryPages
+				+ " pages)");
 		left.explain(depth + 1);
 		right.explain(depth + 1);
 	}
 
 	/**
-	 * Restarts the iterator, i.e. as if it were just constructed.
+	 * Restarts the iterator, i.e. as if it were just constructed; the inputs
+	 * are partitioned again on the next request for a tuple.
 	 */
 	public void restart() {
 		left.restart();
-		right.restart();
+		if (null == owner) {
+			right.restart();
+		}
 		isOpen = true;
-		leftBucketScan.restart();
-		rightBucketScan.restart();
-		leftHashKey = -1;
-		rightHashKey = -2;
-
-		matchingTuples = null;
-		indexInTupleArray = 0;
-
-		rightTupleToMatch = null;
-		leftTupleToMatch = null;
-
-		hashTableDup = null;
+		reset();
+	}
 
-		// throw new UnsupportedOperationException("Not implemented");
+	/**
+	 * Drops all partitions and matching state, deleting the temporary files
+	 * (other than those the PartitionRegistry holds).
+	 */
+	private void reset() {
+		built = false;
+		buildKeys = null;
+		dropFilter();
+		streaming = false;
+		table = null;
+		if (null != probeScan) {
+			probeScan.close();
+			probeScan = null;
+		}
+		if (null != chunkScan) {
+			chunkScan.close();
+			chunkScan = null;
+		}
+		release(joining);
+		joining = null;
+		for (ArrayList<Partition> parts : Arrays.asList(pending, deferred)) {
+			if (null != parts) {
+				for (Partition p : parts) {
+					release(p);
+				}
+			}
+		}
+		pending = null;
+		deferred = null;
+		if (null != streamed) {
+			for (Partition p : streamed) {
+				release(p);
+			}
+			streamed = null;
+		}
+		probeTuple = null;
+		match = JoinHashTable.NONE;
+		lone = null;
+		matched.clear();
+		unmatched = null;
+		chunked = null;
+		probeMatched.clear();
+		drain();
+		if (null != entry) {
+			PartitionRegistry.release(entry);
+			entry = null;
+		}
+		current = null;
+		nextTuple = null;
 	}
 
 	/**
@@ -164,7 +1343,6 @@ public class HashJoin extends Iterator {
 	 */
 	public boolean isOpen() {
 		return isOpen;
-		// throw new UnsupportedOperationException("Not implemented");
 	}
 
 	/**
@@ -172,9 +1350,16 @@ public class HashJoin extends Iterator {
 	 */
 	public void close() {
 		left.close();
-		leftBucketScan.close();
-		right.close();
-		rightBucketScan.close();
+		if (null == owner) {
+			right.close();
+		}
+		reset();
+		shared = null;
+		if (null != pool) {
+			pool.shutdown();
+			pool = null;
+		}
+		SpillFile.purge();
 		isOpen = false;
 	}
 
@@ -182,8 +1367,9 @@ public class HashJoin extends Iterator {
 	 * Returns true if there are more tuples, false otherwise.
 	 */
 	public boolean hasNext() {
-
-		nextTuple = findNext();
+		if (nextTuple == null) {
+			nextTuple = findNext();
+		}
 		return !(nextTuple == null);
 	}
 
@@ -194,133 +1380,444 @@ public class HashJoin extends Iterator {
 	 *             if no more tuples
 	 */
 	public Tuple getNext() {
-
-		return nextTuple;
+		if (!hasNext()) {
+			throw new IllegalStateException();
+		}
+		Tuple retVal = nextTuple;
+		nextTuple = null;
+		return retVal;
 	}
 
-	public Tuple findNext() {
+	/**
+	 * Fills the batch by running the matching loop directly, without the
+	 * per-row hasNext/getNext handshake.
+	 */
+	public int nextBatch(Tuple[] batch) {
+		int cnt = 0;
+		if (nextTuple != null) {
+			batch[cnt++] = nextTuple;
+			nextTuple = null;
+		}
+		Tuple t = null;
+		while (cnt < batch.length && (t = findNext()) != null) {
+			batch[cnt++] = t;
+		}
+		return cnt;
+	}
 
-		if (matchingTuples != null) { 
-			indexInTupleArray++;
-			if (indexInTupleArray < matchingTuples.length) {
-				// There are already records that exist that will match so just
-				// return the next one
-				Tuple joinedTuple = Tuple.join(leftTupleToMatch,
-						matchingTuples[indexInTupleArray], schema);
-				return joinedTuple;
-			} else {
-				// This means all values for the current outer row is done
-				// processing
-				 
+	/**
+	 * Pushes the joined tuples straight from the probe loop, without going
+	 * back through hasNext/getNext.
+	 */
+	public boolean produce(TupleConsumer consumer) {
+		// hand over whatever the pull side already lined up
+		if (nextTuple != null) {
+			Tuple t = nextTuple;
+			nextTuple = null;
+			if (!consumer.consume(t)) {
+				return false;
 			}
-
 		}
-		while (leftBucketScan.hasNext()) {
-
-			int prevLeftHash = leftHashKey;
+		for (Tuple t = findNext(); t != null; t = findNext()) {
+			if (!consumer.consume(t)) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-			leftHashKey = leftBucketScan.getNextHash();
-			leftTupleToMatch = leftBucketScan.getNext();
-			boolean newLeftHashId = true;
-			if (prevLeftHash == leftHashKey) {
-				newLeftHashId = false;
+	/**
+	 * Returns the next joined tuple, or null if there are no more.
+	 */
+	private Tuple findNext() {
+		while (true) {
+			if (null != lone) {
+				Tuple t = lone;
+				lone = null;
+				return t;
 			}
-			boolean foundMatchingBucket = false;
-			if (newLeftHashId) {
-				foundMatchingBucket = recreateHashDupForNewHash();
-				
-			} else {
-				foundMatchingBucket = true;
+			if (match != JoinHashTable.NONE) {
+				if (keepsRight()) {
+					matched.set(match);
+				}
+				Tuple t = Tuple.join(probeTuple, table.get(match), schema);
+				match = table.next(match);
+				return t;
+			}
+			if (null != unmatched) {
+				if (unmatchedPos < unmatched.size()) {
+					Tuple t = Tuple.join(nullLeft, unmatched.get(unmatchedPos),
+							schema);
+					unmatchedPos = matched.nextClearBit(unmatchedPos + 1);
+					return t;
+				}
+				unmatched = null;
+				matched.clear();
+			}
+			if (!probeNext()) {
+				if (parallelism > 1) {
+					Tuple t = nextParallel();
+					if (null != t || null == deferred || deferred.isEmpty()) {
+						return t;
+					}
+					// the workers are done; join the oversized pairs here
+					chunk(deferred.remove(deferred.size() - 1));
+					continue;
+				}
+				return null;
 			}
+		}
+	}
 
-			if (!foundMatchingBucket) {
-				// get next row in left iter
-				continue;
+	/**
+	 * Returns the next tuple joined by the workers, or null if there are no
+	 * more; hands out more partition pairs as they become free.
+	 */
+	private Tuple nextParallel() {
+		while (null == current || currentPos >= current.tuples.size()) {
+			current = null;
+			if (null == pending) {
+				return null;
 			}
-			Object fieldVal = leftTupleToMatch.getField(lcol);
-			SearchKey sk = new SearchKey(fieldVal);
-			// All fields in hashTableDup with key = sk are matching the join.
-			matchingTuples = hashTableDup.getAll(sk);
-			// We have to return tuple 0 index must be incremented before next
-			// retrival
-			// TODO check if #tuples < index
-			indexInTupleArray = 0;
-			if (matchingTuples == null) {
-				System.out.println("No Matching keys found for "
-						+ fieldVal.toString());
+			dispatch();
+			if (running.isEmpty()) {
 				return null;
 			}
-			Tuple joinedTuple = Tuple.join(leftTupleToMatch,
-					matchingTuples[indexInTupleArray], schema);
-			return joinedTuple;
+			current = take();
+			currentPos = 0;
+		}
+		return current.tuples.get(currentPos++);
+	}
 
+	/**
+	 * Starts pairs on idle workers, and reads the probe sides of the running
+	 * pairs on the calling thread, as far as their workers have room for.
+	 */
+	private void dispatch() {
+		if (null == pool) {
+			pool = Executors.newFixedThreadPool(parallelism,
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "hash join");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			done = new LinkedBlockingQueue<Result>(QUEUE_BATCHES * parallelism);
 		}
-		// No matching tuple found
-		return null;
+		while (running.size() < parallelism) {
+			Partition p = nextPending();
+			if (null == p) {
+				break;
+			}
+			if (!fits(p)) {
+				if (null == deferred) {
+					deferred = new ArrayList<Partition>();
+				}
+				deferred.add(p);
+				continue;
+			}
+			final Task task = new Task();
+			task.part = p;
+			task.build = readAll(p.build, right.schema);
+			if (null != p.probe) {
+				task.probe = new FileScan(left.schema, p.probe);
+			}
+			running.add(task);
+			pool.execute(new Runnable() {
+				public void run() {
+					work(task);
+				}
+			});
+		}
+		for (Task task : running) {
+			while (!task.fed && task.input.remainingCapacity() > 0) {
+				Tuple[] batch = new Tuple[BATCH_SIZE];
+				int n = null == task.probe ? 0 : task.probe.nextBatch(batch);
+				if (0 == n) {
+					// that is all of the pair read
+					if (null != task.probe) {
+						task.probe.close();
+						task.probe = null;
+					}
+					release(task.part);
+					task.fed = true;
+				}
+				task.input.add(n < BATCH_SIZE ? Arrays.copyOf(batch, n) : batch);
+				task.outstanding++;
+			}
+		}
+	}
 
+	/**
+	 * Reads a partition file into memory; an absent one is empty.
+	 */
+	private static ArrayList<Tuple> readAll(HeapFile file, Schema schema) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		if (null == file) {
+			return tuples;
+		}
+		FileScan scan = new FileScan(schema, file);
+		while (scan.hasNext()) {
+			tuples.add(scan.getNext());
+		}
+		scan.close();
+		return tuples;
 	}
 
-	private boolean recreateHashDupForNewHash() {
-		hashTableDup = new HashTableDup();
-		boolean trap = false;
-		//TODO replace this 
-//		rightBucketScan.restart();
-		//TODO need to reset iter ehre?
-		if (leftHashKey == rightHashKey && rightTupleToMatch != null) {
-			Object fieldVal = rightTupleToMatch.getField(rcol);
-			SearchKey sk = new SearchKey(fieldVal);
-			hashTableDup.add(sk, rightTupleToMatch);
-			trap = true;
-		}
-			
-			while (rightBucketScan.hasNext()) {
-			
-			rightHashKey = rightBucketScan.getNextHash();
-			rightTupleToMatch = rightBucketScan.getNext();
-
-			if (leftHashKey == rightHashKey) {
-				// Take all rows with this hash key and save in Tuple[]
-				// read all right tuples hash and save in hashtable
-
-				Object fieldVal = rightTupleToMatch.getField(rcol);
-				SearchKey sk = new SearchKey(fieldVal);
-				hashTableDup.add(sk, rightTupleToMatch);
-				trap = true;
-			} else {
-				if (trap)
-					break;
+	/**
+	 * Joins one partition pair in memory, on a worker thread, handing its
+	 * output over a batch at a time.
+	 */
+	private void work(Task task) {
+		Result out = new Result();
+		out.task = task;
+		try {
+			JoinHashTable table = new JoinHashTable(right.schema, rcols);
+			for (Tuple t : task.build) {
+				table.add(t);
 			}
+			task.build = null;
+			BitSet matched = keepsRight() ? new BitSet() : null;
+			Tuple[] batch;
+			while ((batch = task.input.take()).length > 0) {
+				for (int i = 0; i < batch.length && !task.cancelled; i++) {
+					Tuple t = batch[i];
+					int m = table.first(t, lkey);
+					if (type == Type.SEMI || type == Type.ANTI) {
+						if ((m != JoinHashTable.NONE) == (type == Type.SEMI)) {
+							out = emit(out, t);
+						}
+					} else if (m == JoinHashTable.NONE) {
+						if (keepsLeft()) {
+							out = emit(out, Tuple.join(t, nullRight, schema));
+						}
+					} else {
+						for (; m != JoinHashTable.NONE; m = table.next(m)) {
+							if (null != matched) {
+								matched.set(m);
+							}
+							out = emit(out, Tuple.join(t, table.get(m), schema));
+						}
+					}
+				}
+				// the calling thread counts the batches it has fed
+				out.ack = true;
+				hand(out);
+				out = new Result();
+				out.task = task;
+			}
+			if (null != matched) {
+				for (int i = matched.nextClearBit(0); i < table.size()
+						&& !task.cancelled; i = matched.nextClearBit(i + 1)) {
+					out = emit(out, Tuple.join(nullLeft, table.get(i), schema));
+				}
+			}
+		} catch (InterruptedException exc) {
+			out.error = new IllegalStateException("interrupted joining a pair");
+		} catch (RuntimeException exc) {
+			out.error = exc;
+		}
+		out.ack = out.last = true;
+		hand(out);
+	}
 
+	/**
+	 * Adds a tuple to a worker's output, handing the batch over once it is
+	 * full; returns the batch to add to next.
+	 */
+	private Result emit(Result out, Tuple t) {
+		out.tuples.add(t);
+		if (out.tuples.size() < BATCH_SIZE) {
+			return out;
 		}
-//		if (!trap) {
-//			//no tuple matched condition
-//			return false;
-//		} else {
-//			return true;
-//		}
-		return trap;
-		
+		hand(out);
+		Result next = new Result();
+		next.task = out.task;
+		return next;
 	}
 
-	public Tuple getNextTupleFromIter(Iterator it, ScanType scanType) {
-		switch (scanType) {
-		case FILESCAN:
-			return ((FileScan) it).getNext();
-		case KEYSCAN:
-			return ((KeyScan) it).getNext();
-		case INDEXSCAN:
-			((KeyScan) it).getNext();
+	/**
+	 * Hands a worker's output to the calling thread, waiting for room.
+	 */
+	private void hand(Result result) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.put(result);
+				break;
+			} catch (InterruptedException exc) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
+	/**
+	 * Waits for the next batch of output from the workers; there is always
+	 * one coming while a pair is running, since each has probe tuples (or the
+	 * end of them) to work through.
+	 */
+	private Result take() {
+		Result result = null;
+		while (null == result) {
+			try {
+				result = done.take();
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted waiting for workers");
+			}
+		}
+		if (result.ack) {
+			result.task.outstanding--;
+		}
+		if (result.last) {
+			running.remove(result.task);
 		}
+		if (null != result.error) {
+			throw result.error;
+		}
+		return result;
+	}
 
-		return null;
+	/**
+	 * Stops every running pair, and waits for (and discards) what is left of
+	 * their output.
+	 */
+	private void drain() {
+		for (Task task : running) {
+			task.cancelled = true;
+			task.input.clear();
+			task.input.offer(new Tuple[0]);
+			if (null != task.probe) {
+				task.probe.close();
+				task.probe = null;
+			}
+			release(task.part);
+			task.fed = true;
+		}
+		while (!running.isEmpty() && !Thread.currentThread().isInterrupted()) {
+			try {
+				take();
+			} catch (RuntimeException exc) {
+				// the results are being thrown away anyway
+			}
+		}
+	}
+
+	/**
+	 * Gets the current probe tuple to give as it is, copied if its input
+	 * recycles it.
+	 */
+	private Tuple leftTuple() {
+		if (streaming && left.reuse) {
+			return new Tuple(left.schema, probeTuple.getData().clone());
+		}
+		return probeTuple;
 	}
 
-	public void setHeapFile(HeapFile heap) {
-		this.file = heap;
+	/**
+	 * Is done with the current table; if the build tuples that did not match
+	 * are wanted, and there are any, they are set aside to be given next.
+	 * Returns true if so.
+	 */
+	private boolean retire() {
+		JoinHashTable done = table;
+		table = null;
+		if (null == done || !keepsRight()) {
+			return false;
+		}
+		unmatchedPos = matched.nextClearBit(0);
+		if (unmatchedPos >= done.size()) {
+			matched.clear();
+			return false;
+		}
+		unmatched = done;
+		return true;
 	}
 
-	public HeapFile getHeapFile() {
-		return file;
+	/**
+	 * Advances to the next probe tuple that has matches, leaving the first in
+	 * match, or to the next tuple to give by itself, leaving it in lone; also
+	 * stops when a table is done with and its unmatched build tuples are
+	 * wanted. Returns false once every partition is done.
+	 */
+	private boolean probeNext() {
+		build();
+		if (!built) {
+			return false;
+		}
+		while (true) {
+			if (streaming) {
+				if (!left.hasNext()) {
+					// the rest (if any) is on disk
+					if (null != streamed) {
+						queue(streamed);
+						streamed = null;
+					}
+					streaming = false;
+					dropFilter();
+					if (retire()) {
+						return true;
+					}
+					continue;
+				}
+				probeTuple = left.getNext();
+				if (null != streamed) {
+					int b = bucket(probeTuple, lkey, 0, stats.fanout);
+					if (b == stats.fanout) {
+						stats.hotProbe++;
+					}
+					Partition p = streamed[b];
+					if (null != p.build) {
+						spillProbe(p, probeTuple);
+						continue;
+					}
+				}
+			} else if (parallelism > 1 && null == chunked) {
+				// the workers join the spilled pairs
+				match = JoinHashTable.NONE;
+				return false;
+			} else if (probeScan == null || !probeScan.hasNext()) {
+				if (retire()) {
+					return true;
+				}
+				if (!nextChunk() && !nextPartition()) {
+					match = JoinHashTable.NONE;
+					return false;
+				}
+				continue;
+			} else {
+				probeTuple = probeScan.getNext();
+			}
+			match = table.first(probeTuple, lkey);
+			boolean found = match != JoinHashTable.NONE;
+			boolean settled = true;
+			if (null != chunked && (type == Type.SEMI || keepsLeft())) {
+				// each chunk sees the probe tuple, but it is given or padded once
+				boolean seen = probeMatched.get(probePos);
+				probeMatched.set(probePos++, seen || found);
+				if (seen && (type == Type.SEMI || type == Type.ANTI)) {
+					match = JoinHashTable.NONE;
+					continue;
+				}
+				settled = !seen && lastChunk;
+			}
+			if (type == Type.SEMI || type == Type.ANTI) {
+				match = JoinHashTable.NONE;
+				if (type == Type.SEMI ? found : !found && settled) {
+					lone = leftTuple();
+					return true;
+				}
+			} else if (found) {
+				return true;
+			} else if (keepsLeft() && settled) {
+				lone = Tuple.join(probeTuple, nullRight, schema);
+				return true;
+			}
+		}
 	}
+
 } // public class HashJoin extends Iterator
@@ -0,0 +1,208 @@
+package relop;
+
+import global.RID;
+import global.SearchKey;
+import heap.HeapFile;
+import index.HashIndex;
+import index.HashScan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index nested loops join (see textbook, 3rd edition, section 14.4.1, page
+ * 456): for each left tuple, the right table's hash index on the join column
+ * is probed with its key, like a KeyScan, and the matching records are
+ * fetched from the heap file. The matches of recently probed keys (misses
+ * included) are kept in a small LRU cache, so that repeated outer keys do
+ * not go back to the index. The cache only lasts until the join is restarted,
+ * since the right table may have changed by then.
+ */
+public class IndexNestedLoopJoin extends Iterator {
+
+  /** Default number of keys whose matches are cached. */
+  public static final int DEFAULT_CACHE_SIZE = 256;
+
+  private static final Tuple[] NO_MATCHES = new Tuple[0];
+
+  private Iterator left = null;
+  private Integer lcol = null;
+  private Schema rschema = null;
+  private HashIndex index = null;
+  private HeapFile file = null;
+  private boolean isOpen = false;
+
+  /** Matches of recently probed keys, least recently used first. */
+  private LinkedHashMap<SearchKey, Tuple[]> cache = null;
+
+  /** Counts of index probes and cache hits. */
+  private long probes = 0;
+  private long hits = 0;
+
+  /** The current left tuple, and where we are in its matches. */
+  private Tuple lTuple = null;
+  private Tuple[] matches = NO_MATCHES;
+  private int matchPos = 0;
+
+  private Tuple next = null;
+
+  /**
+   * Constructs a join, given the left iterator and which of its columns to
+   * match, and the right table's schema, hash index (on the join column),
+   * and heap file.
+   */
+  public IndexNestedLoopJoin(Iterator left, Integer lcol, Schema rschema,
+      HashIndex index, HeapFile file) {
+    this(left, lcol, rschema, index, file, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Constructs a join as above, caching the matches of the given number of
+   * keys (or none).
+   */
+  public IndexNestedLoopJoin(Iterator left, Integer lcol, Schema rschema,
+      HashIndex index, HeapFile file, final int cacheSize) {
+    this.left = left;
+    this.lcol = lcol;
+    this.rschema = rschema;
+    this.index = index;
+    this.file = file;
+    this.schema = Schema.join(left.schema, rschema);
+    cache = new LinkedHashMap<SearchKey, Tuple[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      protected boolean removeEldestEntry(Map.Entry<SearchKey, Tuple[]> e) {
+        return size() > cacheSize;
+      }
+    };
+    isOpen = true;
+  }
+
+  /**
+   * Gets the number of times the index was probed.
+   */
+  public long getProbes() {
+    return probes;
+  }
+
+  /**
+   * Gets the number of left tuples whose matches were found in the cache.
+   */
+  public long getCacheHits() {
+    return hits;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("INDEX NESTED LOOP JOIN (" + left.schema.fieldName(lcol)
+        + ")");
+    left.explain(depth + 1);
+    indent(depth + 1);
+    System.out.println("KEY SCAN");
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed; the cache is
+   * emptied too.
+   */
+  public void restart() {
+    left.restart();
+    cache.clear();
+    lTuple = null;
+    matches = NO_MATCHES;
+    matchPos = 0;
+    next = null;
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    left.close();
+    cache.clear();
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (null == next) {
+      next = findNext();
+    }
+    return null != next;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (!hasNext()) {
+      throw new IllegalStateException();
+    }
+    Tuple retVal = next;
+    next = null;
+    return retVal;
+  }
+
+  /**
+   * Returns the next joined tuple, or null if there are no more.
+   */
+  private Tuple findNext() {
+    if (!isOpen) {
+      return null;
+    }
+    while (matchPos >= matches.length) {
+      if (!left.hasNext()) {
+        return null;
+      }
+      lTuple = left.getNext();
+      if (lTuple.isNull(lcol)) {
+        // a null key matches nothing, and cannot be searched for
+        matches = NO_MATCHES;
+        continue;
+      }
+      matches = lookup(new SearchKey(lTuple.getField(lcol)));
+      matchPos = 0;
+    }
+    return Tuple.join(lTuple, matches[matchPos++], schema);
+  }
+
+  /**
+   * Gets the right tuples with the given key, from the cache or else by
+   * probing the index.
+   */
+  private Tuple[] lookup(SearchKey key) {
+    Tuple[] found = cache.get(key);
+    if (null != found) {
+      hits++;
+      return found;
+    }
+    probes++;
+    ArrayList<Tuple> list = new ArrayList<Tuple>();
+    HashScan scan = index.openScan(key);
+    while (scan.hasNext()) {
+      RID rid = scan.getNext();
+      list.add(new Tuple(rschema, file.selectRecord(rid)));
+    }
+    scan.close();
+    found = list.isEmpty() ? NO_MATCHES : list.toArray(new Tuple[list.size()]);
+    cache.put(key, found);
+    return found;
+  }
+
+} // public class IndexNestedLoopJoin extends Iterator
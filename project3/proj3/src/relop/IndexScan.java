@@ -9,7 +9,7 @@ import index.BucketScan;
 /**
  * Wrapper for bucket scan, an index access method.
  */
-public class IndexScan extends Iterator {
+public class IndexScan extends Iterator implements FileSource {
 
   private HashIndex index;
   private HeapFile file;
@@ -17,6 +17,20 @@ public class IndexScan extends Iterator {
 
   private boolean isOpen;
 
+  /** Drops records whose key fails the filter, unless null. */
+  private BloomFilter filter;
+  private JoinHashTable.Key filterKey;
+
+  /** A record read ahead by hasNext, when filtering, with its key and hash. */
+  private byte[] ahead;
+  private SearchKey aheadKey;
+  private int aheadHash;
+
+  /** The key of the last record read, and of the last one returned. */
+  private SearchKey readKey;
+  private int readHash;
+  private SearchKey lastKey;
+
   /**
    * Constructs an index scan, given the hash index and schema.
    */
@@ -30,6 +44,25 @@ public class IndexScan extends Iterator {
   private void init() {
     scan = index.openScan();
     isOpen = true;
+    ahead = null;
+    lastKey = null;
+  }
+
+  /**
+   * Drops the records whose key (the given fields) is not in the filter from
+   * now on, or none if the filter is null.
+   */
+  public void setFilter(BloomFilter filter, int[] cols) {
+    this.filter = filter;
+    this.filterKey = (null == filter) ? null : new JoinHashTable.Key(schema,
+        cols);
+  }
+
+  /**
+   * Gets the layout of the tuples: the records themselves.
+   */
+  public String getLayout() {
+    return "records";
   }
 
   /**
@@ -68,7 +101,14 @@ public class IndexScan extends Iterator {
    * Returns true if there are more tuples, false otherwise.
    */
   public boolean hasNext() {
-    return isOpen ? scan.hasNext() : false;
+    if (!isOpen) return false;
+    if (null == filter && null == ahead) return scan.hasNext();
+    if (null == ahead) {
+      ahead = read();
+      aheadKey = readKey;
+      aheadHash = readHash;
+    }
+    return null != ahead;
   }
 
   /**
@@ -77,16 +117,78 @@ public class IndexScan extends Iterator {
    * @throws IllegalStateException if no more tuples
    */
   public Tuple getNext() {
-    byte[] record = file.selectRecord(scan.getNext());
+    byte[] record = next();
     if (null == record) throw new IllegalStateException();
     return new Tuple(schema, record);
   }
 
+  /**
+   * Fills the batch straight from the bucket scan, skipping the per-row
+   * hasNext/getNext calls.
+   */
+  public int nextBatch(Tuple[] batch) {
+    if (!isOpen) return 0;
+    int cnt = 0;
+    byte[] record;
+    while (cnt < batch.length && (record = next()) != null) {
+      batch[cnt++] = new Tuple(schema, record);
+    }
+    return cnt;
+  }
+
+  /**
+   * Pushes every remaining record straight from the bucket scan.
+   */
+  public boolean produce(TupleConsumer consumer) {
+    if (!isOpen) return true;
+    byte[] record;
+    while ((record = next()) != null) {
+      if (!consumer.consume(new Tuple(schema, record))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the next record (the one read ahead, if any), or returns null if
+   * there are no more.
+   */
+  private byte[] next() {
+    if (null != ahead) {
+      byte[] record = ahead;
+      ahead = null;
+      lastKey = aheadKey;
+      return record;
+    }
+    byte[] record = read();
+    lastKey = readKey;
+    return record;
+  }
+
+  /**
+   * Reads the next record that passes the filter (if any), noting its key
+   * and the hash of its bucket, or returns null if there are no more.
+   */
+  private byte[] read() {
+    while (scan.hasNext()) {
+      readHash = scan.getNextHash();
+      byte[] record = file.selectRecord(scan.getNext());
+      if (null == record) throw new IllegalStateException();
+      if (null == filter || filter.test(record, filterKey)) {
+        readKey = scan.getLastKey();
+        return record;
+      }
+    }
+    readKey = null;
+    return null;
+  }
+
   /**
    * Gets the key of the last tuple returned.
    */
   public SearchKey getLastKey() {
-    return scan.getLastKey();
+    return lastKey;
   }
 
   /**
@@ -94,6 +196,10 @@ public class IndexScan extends Iterator {
    * number of buckets if none.
    */
   public int getNextHash() {
+    if ((null != filter || null != ahead) && hasNext()) {
+      // the next tuple is the one read ahead, not the scan's next record
+      return aheadHash;
+    }
     return scan.getNextHash();
   }
 
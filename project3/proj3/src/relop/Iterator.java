@@ -1,5 +1,9 @@
 package relop;
 
+import global.SortKey;
+
+import java.util.Arrays;
+
 /**
  * <h3>Minibase Iterators</h3>
  * Query execution is driven by a tree of relational operators, all of which are
@@ -10,9 +14,18 @@ package relop;
  */
 public abstract class Iterator {
 
+  /** Default number of tuples requested per nextBatch call. */
+  public static final int BATCH_SIZE = 64;
+
   /** Schema for resulting tuples; must be set in all subclass constructors. */
   protected Schema schema;
 
+  /** True if returned tuples may be overwritten by the following call. */
+  protected boolean reuse = false;
+
+  /** Tuples recycled across calls when reuse is enabled, one per batch slot. */
+  private Tuple[] recycled = new Tuple[0];
+
   // --------------------------------------------------------------------------
 
   /**
@@ -45,6 +58,14 @@ public abstract class Iterator {
    */
   public abstract void close();
 
+  /**
+   * Gets the order of the resulting tuples, as sort keys on field numbers
+   * (most significant first), or null if unknown.
+   */
+  public SortKey[] getOrder() {
+    return null;
+  }
+
   /**
    * Returns true if there are more tuples, false otherwise.
    */
@@ -57,6 +78,64 @@ public abstract class Iterator {
    */
   public abstract Tuple getNext();
 
+  /**
+   * Fills the given batch with up to batch.length tuples, starting at index
+   * zero, and returns how many were stored; zero means there are no more
+   * tuples. This default adapts hasNext/getNext so that row-at-a-time
+   * operators still compose with batched ones; operators that can move rows
+   * more cheaply override it.
+   */
+  public int nextBatch(Tuple[] batch) {
+    int cnt = 0;
+    while (cnt < batch.length && hasNext()) {
+      batch[cnt++] = getNext();
+    }
+    return cnt;
+  }
+
+  /**
+   * Pushes the remaining tuples into the consumer, until the iteration ends or
+   * the consumer asks to stop; this is the push-based way to run a plan. The
+   * default bridges from the pull model by draining hasNext/getNext, so any
+   * operator can take part; leaves and pipelining operators override it, so
+   * that a whole scan-select-project chain runs as nested callbacks driven by
+   * the scan.
+   * 
+   * @return false if the consumer stopped the iteration early
+   */
+  public boolean produce(TupleConsumer consumer) {
+    while (hasNext()) {
+      if (!consumer.consume(getNext())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Enables or disables tuple reuse. When enabled, an iterator may hand back
+   * the same Tuple (and RID) objects on every call, overwriting them on the
+   * following getNext or nextBatch; callers that keep a tuple must copy it.
+   * Operators that pass their children's tuples through forward the setting.
+   */
+  public void setReuse(boolean reuse) {
+    this.reuse = reuse;
+  }
+
+  /**
+   * Gets the recycled tuple for the given batch slot, creating it on first
+   * use; row-at-a-time calls use slot zero.
+   */
+  protected Tuple recycle(int slot) {
+    if (slot >= recycled.length) {
+      recycled = Arrays.copyOf(recycled, Math.max(slot + 1, BATCH_SIZE));
+    }
+    if (null == recycled[slot]) {
+      recycled[slot] = new Tuple(schema);
+    }
+    return recycled[slot];
+  }
+
   /**
    * Prints the schema, gets and prints all tuples, and closes the iterator.
    * 
@@ -65,14 +144,37 @@ public abstract class Iterator {
   public int execute() {
     int cnt = 0;
     schema.print();
-    while (hasNext()) {
-      getNext().print();
-      cnt++;
+    Tuple[] batch = new Tuple[BATCH_SIZE];
+    for (int n = nextBatch(batch); n > 0; n = nextBatch(batch)) {
+      for (int i = 0; i < n; i++) {
+        batch[i].print();
+      }
+      cnt += n;
     }
     close();
     return cnt;
   }
 
+  /**
+   * Same as execute, except that the tuples are pushed up the plan with
+   * produce rather than pulled with getNext.
+   * 
+   * @return number of tuples processed
+   */
+  public int executePush() {
+    final int[] cnt = new int[1];
+    schema.print();
+    produce(new TupleConsumer() {
+      public boolean consume(Tuple tuple) {
+        tuple.print();
+        cnt[0]++;
+        return true;
+      }
+    });
+    close();
+    return cnt[0];
+  }
+
   /**
    * Called by the garbage collector when there are no more references to the
    * object; closes the iterator if it's still open.
@@ -0,0 +1,305 @@
+package relop;
+
+import global.AttrType;
+import global.Convert;
+
+import java.util.Arrays;
+
+/**
+ * A hash table of tuples on one or more of their fields, allowing duplicate
+ * keys, for the hash joins. Integer and float fields are hashed as primitive
+ * ints (a float by its bits, as Float.equals compares them); strings are
+ * hashed and compared on their trimmed bytes, as if decoded by
+ * Convert.getStringValue; the fields of a composite key are hashed together.
+ * A key with a null field equals no other key, not even another null one:
+ * such tuples are kept (so outer joins still find them unmatched) but never
+ * put in a chain, and a probe with one finds nothing.
+ * The tuples are kept in flat arrays, with duplicates chained through the
+ * next array, and open addressing on the distinct keys; matches are walked
+ * with int cursors.
+ */
+class JoinHashTable {
+
+  /** Marks the end of a chain of matches. */
+  public static final int NONE = -1;
+
+  private static final int INITIAL_SIZE = 16;
+
+  /**
+   * Where a key is in the tuples of a schema: the type, offset, and length
+   * of each of its fields, most significant first.
+   */
+  static class Key {
+
+    final int[] types;
+    final int[] offsets;
+    final int[] lengths;
+    final int[] nullOffsets;
+    final int[] nullMasks;
+
+    /**
+     * Describes the key made of the given fields of a schema.
+     */
+    public Key(Schema schema, int... cols) {
+      types = new int[cols.length];
+      offsets = new int[cols.length];
+      lengths = new int[cols.length];
+      nullOffsets = new int[cols.length];
+      nullMasks = new int[cols.length];
+      for (int i = 0; i < cols.length; i++) {
+        types[i] = schema.fieldType(cols[i]);
+        offsets[i] = schema.fieldOffset(cols[i]);
+        lengths[i] = schema.fieldLength(cols[i]);
+        nullOffsets[i] = schema.nullOffset(cols[i]);
+        nullMasks[i] = schema.nullMask(cols[i]);
+      }
+    }
+
+    /**
+     * Returns true if any field of the key is null in the given record.
+     */
+    public boolean isNull(byte[] data) {
+      for (int i = 0; i < nullOffsets.length; i++) {
+        if ((data[nullOffsets[i]] & nullMasks[i]) != 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Returns true if keys of this kind can equal keys of the other kind.
+     */
+    public boolean isComparable(Key other) {
+      return Arrays.equals(types, other.types);
+    }
+
+    /**
+     * Returns true if the other key is made of the same bytes of a record,
+     * i.e. the same types at the same places (and so hashes the same).
+     */
+    public boolean isSameAs(Key other) {
+      return Arrays.equals(types, other.types)
+          && Arrays.equals(offsets, other.offsets)
+          && Arrays.equals(lengths, other.lengths)
+          && Arrays.equals(nullOffsets, other.nullOffsets)
+          && Arrays.equals(nullMasks, other.nullMasks);
+    }
+
+  } // static class Key
+
+  /** Where the key is in the tuples added. */
+  private final Key key;
+
+  /** True if the key is one integer or float, so equal hashes mean equal keys. */
+  private final boolean exact;
+
+  /** The tuples added, their key hashes, and duplicate chains. */
+  private Tuple[] tuples;
+  private int[] hashes;
+  private int[] next;
+  private int size;
+
+  /** First and last tuple of each distinct key, by slot. */
+  private int[] heads;
+  private int[] tails;
+  private int distinct;
+
+  /**
+   * Constructs an empty table, given the schema of the tuples to be added and
+   * which of their fields make up the key.
+   */
+  public JoinHashTable(Schema schema, int... cols) {
+    key = new Key(schema, cols);
+    exact = cols.length == 1 && key.types[0] != AttrType.STRING;
+    tuples = new Tuple[INITIAL_SIZE];
+    hashes = new int[INITIAL_SIZE];
+    next = new int[INITIAL_SIZE];
+    heads = new int[INITIAL_SIZE * 2];
+    tails = new int[INITIAL_SIZE * 2];
+    Arrays.fill(heads, NONE);
+  }
+
+  /**
+   * Gets the number of tuples in the table.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns true if the table has no tuples.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds a tuple to the table, after any others with the same key.
+   */
+  public void add(Tuple tuple) {
+    if (size == tuples.length) {
+      tuples = Arrays.copyOf(tuples, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+      next = Arrays.copyOf(next, size * 2);
+    }
+    byte[] data = tuple.getData();
+    int hash = hash(data, key);
+    tuples[size] = tuple;
+    hashes[size] = hash;
+    next[size] = NONE;
+    if (key.isNull(data)) {
+      size++;
+      return;
+    }
+    int slot = find(hash, data, key);
+    if (heads[slot] == NONE) {
+      heads[slot] = tails[slot] = size;
+      if (++distinct * 2 > heads.length) {
+        grow();
+      }
+    } else {
+      next[tails[slot]] = size;
+      tails[slot] = size;
+    }
+    size++;
+  }
+
+  /**
+   * Gets the first tuple whose key matches the probe tuple's key, described
+   * by the given fields, or NONE.
+   */
+  public int first(Tuple probe, Key probeKey) {
+    if (probeKey != key && !key.isComparable(probeKey)) {
+      return NONE;
+    }
+    byte[] data = probe.getData();
+    if (probeKey.isNull(data)) {
+      return NONE;
+    }
+    return heads[find(hash(data, probeKey), data, probeKey)];
+  }
+
+  /**
+   * Gets the next tuple with the same key as the given one, or NONE.
+   */
+  public int next(int entry) {
+    return next[entry];
+  }
+
+  /**
+   * Gets the tuple at the given cursor.
+   */
+  public Tuple get(int entry) {
+    return tuples[entry];
+  }
+
+  /**
+   * Hashes the key of a record; for a key of one field, this is its value if
+   * an integer, its bits if a float, or the hash code of its trimmed string
+   * otherwise, i.e. the hash code of the value Tuple.getField would return.
+   */
+  static int hash(byte[] data, Key key) {
+    int h = 0;
+    for (int i = 0; i < key.types.length; i++) {
+      h = 31 * h + hash(key.types[i], data, key.offsets[i], key.lengths[i]);
+    }
+    return h;
+  }
+
+  /**
+   * Hashes a field, given its type, offset, and length.
+   */
+  private static int hash(int type, byte[] data, int off, int len) {
+    switch (type) {
+
+      case AttrType.INTEGER:
+        return Convert.getIntValue(off, data);
+
+      case AttrType.FLOAT:
+        return Float.floatToIntBits(Convert.getFloatValue(off, data));
+
+      default:
+        // String.hashCode, over the trimmed bytes if they are ASCII
+        int start = off, end = Math.min(off + len, data.length);
+        while (start < end && (data[start] & 0xff) <= ' ') start++;
+        while (end > start && (data[end - 1] & 0xff) <= ' ') end--;
+        int h = 0;
+        for (int i = start; i < end; i++) {
+          if (data[i] < 0) {
+            return Convert.getStringValue(off, data, len).hashCode();
+          }
+          h = 31 * h + data[i];
+        }
+        return h;
+
+    } // switch (type)
+  }
+
+  /**
+   * Returns true if the key of a record equals the key of a tuple added.
+   */
+  private boolean equals(byte[] data, Key probeKey, int entry) {
+    byte[] own = tuples[entry].getData();
+    for (int i = 0; i < key.types.length; i++) {
+      int off = probeKey.offsets[i];
+      int len = probeKey.lengths[i];
+      if (key.types[i] == AttrType.STRING) {
+        if (Convert.compareStrings(data, off, len, true, own,
+            key.offsets[i], key.lengths[i], true) != 0) {
+          return false;
+        }
+      } else if (hash(key.types[i], data, off, len) != hash(key.types[i], own,
+          key.offsets[i], key.lengths[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finds the slot of the given key, or the empty slot where it would go.
+   */
+  private int find(int hash, byte[] data, Key probeKey) {
+    int mask = heads.length - 1;
+    for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+      int head = heads[slot];
+      if (head == NONE || (hashes[head] == hash
+          && (exact || equals(data, probeKey, head)))) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Doubles the number of slots, putting the distinct keys back in.
+   */
+  private void grow() {
+    int[] oldHeads = heads;
+    int[] oldTails = tails;
+    heads = new int[oldHeads.length * 2];
+    tails = new int[oldTails.length * 2];
+    Arrays.fill(heads, NONE);
+    int mask = heads.length - 1;
+    for (int i = 0; i < oldHeads.length; i++) {
+      int head = oldHeads[i];
+      if (head != NONE) {
+        int slot = mix(hashes[head]) & mask;
+        while (heads[slot] != NONE) {
+          slot = (slot + 1) & mask;
+        }
+        heads[slot] = head;
+        tails[slot] = oldTails[i];
+      }
+    }
+  }
+
+  /**
+   * Spreads the bits of a hash, so that nearby keys use scattered slots.
+   */
+  private static int mix(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+} // class JoinHashTable
@@ -83,6 +83,36 @@ public class KeyScan extends Iterator {
     if (null == record) throw new IllegalStateException();
     return new Tuple(schema, record);
   }
+
+  /**
+   * Fills the batch straight from the hash scan, skipping the per-row
+   * hasNext/getNext calls.
+   */
+  public int nextBatch(Tuple[] batch) {
+    if (!isOpen) return 0;
+    int cnt = 0;
+    while (cnt < batch.length && scan.hasNext()) {
+      byte[] record = file.selectRecord(scan.getNext());
+      if (null == record) throw new IllegalStateException();
+      batch[cnt++] = new Tuple(schema, record);
+    }
+    return cnt;
+  }
+
+  /**
+   * Pushes every remaining record straight from the hash scan.
+   */
+  public boolean produce(TupleConsumer consumer) {
+    if (!isOpen) return true;
+    while (scan.hasNext()) {
+      byte[] record = file.selectRecord(scan.getNext());
+      if (null == record) throw new IllegalStateException();
+      if (!consumer.consume(new Tuple(schema, record))) {
+        return false;
+      }
+    }
+    return true;
+  }
   
   public HashIndex getHashIndex() {
 	  return index;
@@ -0,0 +1,235 @@
+package relop;
+
+import global.AttrType;
+import global.PageId;
+import global.RID;
+import heap.HeapFile;
+
+import java.util.Arrays;
+
+/**
+ * Late materialization hash join: only the join keys and record ids of the
+ * two files are hashed, partitioned, and spilled (by a HashJoin over them),
+ * and the full records are fetched from the heap files for the result rows
+ * alone. Wide tuples that do not match are thus never copied, and a spilled
+ * partition holds many more (narrow) tuples per page. A left record is only
+ * fetched once for a run of matches in a row.
+ */
+public class LateHashJoin extends Iterator {
+
+  private FileScan left = null;
+  private FileScan right = null;
+  private HeapFile lfile = null;
+  private HeapFile rfile = null;
+
+  /** The join of the keys and record ids. */
+  private HashJoin join = null;
+
+  /** Where the left and right record ids are in its tuples. */
+  private int lrid;
+  private int rrid;
+
+  /** The last left record fetched, and its id. */
+  private RID lastRID = null;
+  private byte[] lastRecord = null;
+
+  /** Number of records fetched from each side. */
+  private long lfetched = 0;
+  private long rfetched = 0;
+
+  /**
+   * Narrows a file scan down to the key columns and the record id (as page
+   * and slot numbers) of each record. It still reads one heap file, so the
+   * hash join gets to size, filter, and sample it like the scan itself. The
+   * scan recycles its tuples meanwhile, and is put back as it was on close.
+   */
+  private static class KeyRIDScan extends Iterator implements FileSource {
+
+    private FileScan scan;
+    private int[] cols;
+    private boolean scanReuse;
+
+    public KeyRIDScan(FileScan scan, int[] cols) {
+      this.scan = scan;
+      this.cols = cols.clone();
+      schema = new Schema(cols.length + 2);
+      for (int i = 0; i < cols.length; i++) {
+        schema.initField(i, scan.schema, cols[i]);
+      }
+      schema.initField(cols.length, AttrType.INTEGER, 4, "PageNo");
+      schema.initField(cols.length + 1, AttrType.INTEGER, 4, "SlotNo");
+      scanReuse = scan.reuse;
+      scan.setReuse(true);
+    }
+
+    public void explain(int depth) {
+      scan.explain(depth);
+    }
+
+    public HeapFile getHeapFile() {
+      return scan.getHeapFile();
+    }
+
+    public String getLayout() {
+      return "keys " + Arrays.toString(cols) + " and record ids";
+    }
+
+    public void setFilter(BloomFilter filter, int[] keys) {
+      int[] fields = new int[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        fields[i] = cols[keys[i]];
+      }
+      scan.setFilter(filter, fields);
+    }
+
+    public void restart() {
+      scan.restart();
+    }
+
+    public boolean isOpen() {
+      return scan.isOpen();
+    }
+
+    public void close() {
+      scan.close();
+      scan.setReuse(scanReuse);
+    }
+
+    public boolean hasNext() {
+      return scan.hasNext();
+    }
+
+    public Tuple getNext() {
+      Tuple record = scan.getNext();
+      Tuple tuple = new Tuple(schema);
+      byte[] data = tuple.getData();
+      for (int i = 0; i < cols.length; i++) {
+        System.arraycopy(record.getData(), scan.schema.fieldOffset(cols[i]),
+            data, schema.fieldOffset(i), schema.fieldLength(i));
+        if (record.isNull(cols[i])) {
+          tuple.setNull(i);
+        }
+      }
+      scan.getLastRID().writeData(data, (short) schema.fieldOffset(
+          cols.length));
+      return tuple;
+    }
+
+  } // private static class KeyRIDScan extends Iterator
+
+  /**
+   * Constructs a join, given the left and right file scans and which columns
+   * to match (relative to their individual schemas).
+   */
+  public LateHashJoin(FileScan left, FileScan right, Integer lcol,
+      Integer rcol) {
+    this(left, right, new int[] { lcol }, new int[] { rcol },
+        HashJoin.DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * Constructs a join on a composite key, given the left and right file
+   * scans, which columns make up the key, and the memory budget in pages.
+   */
+  public LateHashJoin(FileScan left, FileScan right, int[] lcols,
+      int[] rcols, int memoryPages) {
+    this.left = left;
+    this.right = right;
+    lfile = left.getHeapFile();
+    rfile = right.getHeapFile();
+    int[] keys = new int[lcols.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = i;
+    }
+    join = new HashJoin(new KeyRIDScan(left, lcols), new KeyRIDScan(right,
+        rcols), keys, keys, memoryPages);
+    lrid = lcols.length;
+    rrid = lcols.length + 2 + rcols.length;
+    this.schema = Schema.join(left.schema, right.schema);
+  }
+
+  /**
+   * Gets the statistics of the join of the keys.
+   */
+  public HashJoin.Stats getStats() {
+    return join.getStats();
+  }
+
+  /**
+   * Gets the number of records fetched so far from the left and right files.
+   */
+  public long[] getFetched() {
+    return new long[] { lfetched, rfetched };
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("LATE HASH JOIN");
+    left.explain(depth + 1);
+    right.explain(depth + 1);
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    join.restart();
+    lastRID = null;
+    lastRecord = null;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return join.isOpen();
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    join.close();
+    lastRID = null;
+    lastRecord = null;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    return join.hasNext();
+  }
+
+  /**
+   * Gets the next tuple in the iteration, fetching the two records.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    Tuple keys = join.getNext();
+    RID rid = ridAt(keys, lrid);
+    if (null == lastRID || !rid.equals(lastRID)) {
+      lastRecord = lfile.selectRecord(rid);
+      lastRID = rid;
+      lfetched++;
+    }
+    byte[] record = rfile.selectRecord(ridAt(keys, rrid));
+    rfetched++;
+    return Tuple.join(new Tuple(left.schema, lastRecord), new Tuple(
+        right.schema, record), schema);
+  }
+
+  /**
+   * Gets the record id stored in a tuple, starting at the given field.
+   */
+  private static RID ridAt(Tuple tuple, int fldno) {
+    return new RID(new PageId(tuple.getIntFld(fldno)),
+        tuple.getIntFld(fldno + 1));
+  }
+
+} // public class LateHashJoin extends Iterator
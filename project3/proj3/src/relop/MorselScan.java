@@ -0,0 +1,93 @@
+package relop;
+
+/**
+ * Iterates over a morsel, i.e. an in-memory run of tuples handed to a worker
+ * by Exchange; each worker's copy of the pipeline reads from one of these.
+ */
+class MorselScan extends Iterator {
+
+  private Tuple[] tuples;
+  private int count;
+  private int pos;
+  private boolean isOpen;
+
+  /**
+   * Constructs an empty morsel scan, given the schema of its tuples.
+   */
+  public MorselScan(Schema schema) {
+    this.schema = schema;
+    tuples = new Tuple[0];
+    count = 0;
+    pos = 0;
+    isOpen = true;
+  }
+
+  /**
+   * Points the scan at the next morsel and rewinds it.
+   */
+  public void reset(Tuple[] tuples, int count) {
+    this.tuples = tuples;
+    this.count = count;
+    pos = 0;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("MORSEL SCAN");
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    pos = 0;
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    return isOpen && pos < count;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (false == hasNext()) throw new IllegalStateException();
+    return tuples[pos++];
+  }
+
+  /**
+   * Copies the next run of the morsel into the batch.
+   */
+  public int nextBatch(Tuple[] batch) {
+    if (false == isOpen) return 0;
+    int n = Math.min(batch.length, count - pos);
+    System.arraycopy(tuples, pos, batch, 0, n);
+    pos += n;
+    return n;
+  }
+
+} // class MorselScan extends Iterator
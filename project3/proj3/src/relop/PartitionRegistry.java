@@ -0,0 +1,203 @@
+package relop;
+
+import heap.HeapFile;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedList;
+
+/**
+ * Registry of the partitions hash joins have split heap files into, so that
+ * a later join of the same file on the same columns can skip partitioning
+ * it again. Since a heap file can be changed (HeapFile.insertRecord,
+ * updateRecord and the like) without telling anyone, each entry keeps the
+ * record count and a digest of the tuples partitioned, and a join only adopts
+ * it after reading the file again and getting the same digest; reuse saves
+ * writing the partitions, not reading the file. Entries are dropped when the
+ * file is found to have changed, when the file itself is garbage collected,
+ * or when they are the least recently used of more than MAX_ENTRIES; their
+ * partition files are deleted then, or once the last join using them is done.
+ */
+public class PartitionRegistry {
+
+  /** Most partitionings kept at once. */
+  public static final int MAX_ENTRIES = 8;
+
+  /**
+   * The top-level partitions of a heap file on some columns.
+   */
+  static class Entry {
+
+    /** The file partitioned (not kept alive by the registry). */
+    WeakReference<HeapFile> file;
+
+    /** How its records were made into tuples (see FileSource.getLayout). */
+    String layout;
+
+    /** Its record count and tuple length when partitioned, and the key. */
+    int recCnt;
+    long digest;
+    int length;
+    JoinHashTable.Key key;
+
+    /** Number of partitions, and the hot keys kept apart (or null). */
+    int fanout;
+    int[] hotKeys;
+
+    /** The partition files (null if empty) and their tuple counts. */
+    SpillFile[] builds;
+    int[] counts;
+
+    /** Hashes of all the keys, for a Bloom filter, or null. */
+    int[] keys;
+
+    /** Number of joins using the partition files, and whether it is dropped. */
+    int users;
+    boolean dropped;
+
+  } // static class Entry
+
+  /** The entries, most recently used first. */
+  private static final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Digests one tuple, for a digest of a whole input that is the sum of its
+   * tuples' digests, i.e. one that does not depend on their order (nor do the
+   * partitions): a 64-bit FNV-1a hash of the bytes, with its bits spread.
+   */
+  static long digest(byte[] data) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : data) {
+      h = (h ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Drops every partitioning of the given file.
+   */
+  public static synchronized void invalidate(HeapFile file) {
+    java.util.Iterator<Entry> it = entries.iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      HeapFile f = e.file.get();
+      if (null == f || f == file) {
+        it.remove();
+        drop(e);
+      }
+    }
+  }
+
+  /**
+   * Drops every partitioning.
+   */
+  public static synchronized void clear() {
+    for (Entry e : entries) {
+      drop(e);
+    }
+    entries.clear();
+  }
+
+  /**
+   * Is done with a partitioning that a join registered or found; its files
+   * are deleted if it has been dropped since, and no other join uses them.
+   */
+  static synchronized void release(Entry e) {
+    e.users--;
+    if (e.dropped && 0 == e.users) {
+      close(e);
+    }
+  }
+
+  /**
+   * Marks an entry taken out of the registry as dropped, deleting its files
+   * unless a join is still using them.
+   */
+  private static void drop(Entry e) {
+    e.dropped = true;
+    if (0 == e.users) {
+      close(e);
+    }
+  }
+
+  /**
+   * Deletes an entry's partition files.
+   */
+  private static void close(Entry e) {
+    for (SpillFile f : e.builds) {
+      if (null != f) {
+        f.close();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of partitionings kept.
+   */
+  public static synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Finds a partitioning of the given file (read in the given layout, with
+   * the given schema) on the given key, unless the file has visibly changed
+   * since, or returns null; its digest is still to be checked. The caller
+   * uses the partition files until it calls release.
+   */
+  static synchronized Entry find(HeapFile file, String layout, Schema schema,
+      JoinHashTable.Key key) {
+    java.util.Iterator<Entry> it = entries.iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      HeapFile f = e.file.get();
+      if (null == f) {
+        it.remove();
+        drop(e);
+      } else if (f == file && e.layout.equals(layout)
+          && e.length == schema.getLength() && e.key.isSameAs(key)) {
+        it.remove();
+        if (e.recCnt != file.getRecCnt()) {
+          drop(e);
+          return null;
+        }
+        entries.addFirst(e);
+        e.users++;
+        return e;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Registers a partitioning of the given file, whose digest and key are
+   * set, replacing any other on the same key in the same layout. The caller
+   * uses the partition files until it calls release.
+   */
+  static synchronized void register(HeapFile file, String layout,
+      Schema schema, Entry e) {
+    java.util.Iterator<Entry> it = entries.iterator();
+    while (it.hasNext()) {
+      Entry old = it.next();
+      HeapFile f = old.file.get();
+      if (null == f || (f == file && old.layout.equals(layout)
+          && old.key.isSameAs(e.key))) {
+        it.remove();
+        drop(old);
+      }
+    }
+    e.file = new WeakReference<HeapFile>(file);
+    e.layout = layout;
+    e.recCnt = file.getRecCnt();
+    e.length = schema.getLength();
+    e.users++;
+    entries.addFirst(e);
+    while (entries.size() > MAX_ENTRIES) {
+      drop(entries.removeLast());
+    }
+  }
+
+} // public class PartitionRegistry
@@ -0,0 +1,505 @@
+package relop;
+
+import global.AttrOperator;
+import global.AttrType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles a scan-select-project chain, i.e. a FileScan under any number of
+ * Selections and at most one Projection, into a single class generated at run
+ * time. The generated kernel reads fields straight out of the record bytes at
+ * the offsets given by the schema, evaluates the predicates inline, and copies
+ * the projected bytes, so none of the interpretive switches in Tuple and
+ * Predicate are left on the row path. Plans of any other shape, or any plan
+ * when code generation is disabled or no compiler is available, are returned
+ * as they are and run interpreted.
+ */
+public class PipelineCompiler {
+
+  /**
+   * Generated code for one pipeline; implemented by the compiled classes.
+   */
+  public interface Kernel {
+
+    /**
+     * Returns true if the record passes all of the selections.
+     */
+    public boolean filter(byte[] in);
+
+    /**
+     * Copies the projected fields of a qualifying record into out.
+     */
+    public void project(byte[] in, byte[] out);
+
+  } // public interface Kernel
+
+  /** Enables code generation; defaults to the "relop.codegen" property. */
+  public static boolean enabled = !"false".equalsIgnoreCase(System
+      .getProperty("relop.codegen"));
+
+  /** Package of the generated classes. */
+  private static final String GEN_PACKAGE = "relop.gen";
+
+  /** Most kernel classes kept loaded at once. */
+  public static final int MAX_KERNELS = 64;
+
+  /**
+   * Compiled kernel classes, keyed by their generated method bodies and the
+   * types of their constants, least recently used first.
+   */
+  private static final LinkedHashMap<String, Class<?>> compiled = new LinkedHashMap<String, Class<?>>(
+      16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+      return size() > MAX_KERNELS;
+    }
+  };
+
+  /** Counter for naming the generated classes. */
+  private static int classCtr = 0;
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Private constructor (static class).
+   */
+  private PipelineCompiler() {}
+
+  /**
+   * Gets the number of kernel classes compiled so far.
+   */
+  public static synchronized int getClassCount() {
+    return classCtr;
+  }
+
+  /**
+   * Compiles the given plan if it is a scan-select-project chain, in which
+   * case the plan is closed and a CompiledScan is returned in its place;
+   * otherwise returns the plan itself.
+   */
+  public static Iterator compile(Iterator plan) {
+
+    if (!enabled) {
+      return plan;
+    }
+
+    // peel off the projection and selections, down to the file scan
+    Iterator iter = plan;
+    Projection project = null;
+    if (iter instanceof Projection) {
+      project = (Projection) iter;
+      iter = project.getChild();
+    }
+    ArrayList<Predicate[]> conjuncts = new ArrayList<Predicate[]>();
+    while (iter instanceof Selection) {
+      conjuncts.add(((Selection) iter).getPredicates());
+      iter = ((Selection) iter).getChild();
+    }
+    if (!(iter instanceof FileScan)) {
+      return plan;
+    }
+    FileScan scan = (FileScan) iter;
+
+    // generate and load the kernel
+    ArrayList<Object> consts = new ArrayList<Object>();
+    String filter = genFilter(scan.schema, conjuncts, consts);
+    String copy = (null == project) ? "" : genProject(scan.schema, project);
+    if (null == filter) {
+      return plan;
+    }
+    Kernel kernel = instantiate(filter, copy, consts.toArray());
+    if (null == kernel) {
+      return plan;
+    }
+
+    // the compiled scan stands in for the whole chain
+    plan.close();
+    Schema schema = (null == project) ? scan.schema : project.schema;
+    return new CompiledScan(schema, scan.getHeapFile(), kernel, null != project);
+
+  } // public static Iterator compile(Iterator plan)
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Generates the body of filter(): each selection is an OR of predicates,
+   * and stacked selections are ANDed together. Returns null if a predicate
+   * cannot be compiled.
+   */
+  protected static String genFilter(Schema schema, List<Predicate[]> conjuncts,
+      List<Object> consts) {
+
+    StringBuilder code = new StringBuilder();
+    for (Predicate[] preds : conjuncts) {
+      code.append("    if (!(");
+      if (preds.length == 0) {
+        code.append("false");
+      }
+      for (int i = 0; i < preds.length; i++) {
+        String expr = genPredicate(schema, preds[i], consts);
+        if (null == expr) {
+          return null;
+        }
+        code.append(i > 0 ? "\n        || (" : "(").append(expr).append(')');
+      }
+      code.append(")) return false;\n");
+    }
+    code.append("    return true;\n");
+    return code.toString();
+
+  } // protected static String genFilter(...)
+
+  /**
+   * Generates the body of project(), coalescing fields that are adjacent in
+   * both layouts into a single copy, and then setting each byte of the null
+   * bitmap from the source fields' flags.
+   */
+  protected static String genProject(Schema schema, Projection project) {
+
+    StringBuilder code = new StringBuilder();
+    Integer[] fields = project.getFields();
+    int src = -1, dst = -1, len = 0;
+    for (int i = 0; i < fields.length; i++) {
+      int off = schema.fieldOffset(fields[i]);
+      int flen = schema.fieldLength(fields[i]);
+      if (len > 0 && off == src + len && project.schema.fieldOffset(i) == dst + len) {
+        len += flen;
+        continue;
+      }
+      if (len > 0) {
+        code.append("    System.arraycopy(in, " + src + ", out, " + dst + ", "
+            + len + ");\n");
+      }
+      src = off;
+      dst = project.schema.fieldOffset(i);
+      len = flen;
+    }
+    if (len > 0) {
+      code.append("    System.arraycopy(in, " + src + ", out, " + dst + ", "
+          + len + ");\n");
+    }
+    int bytes = -1;
+    for (int i = 0; i < fields.length; i++) {
+      int dbyte = project.schema.nullOffset(i);
+      code.append(dbyte != bytes ? (bytes < 0 ? "" : ");\n") + "    out["
+          + dbyte + "] = (byte) (" : "\n        | ");
+      bytes = dbyte;
+      code.append("((in[" + schema.nullOffset(fields[i]) + "] & "
+          + schema.nullMask(fields[i]) + ") != 0 ? "
+          + project.schema.nullMask(i) + " : 0)");
+    }
+    if (bytes >= 0) {
+      code.append(");\n");
+    }
+    return code.toString();
+
+  } // protected static String genProject(Schema schema, Projection project)
+
+  /**
+   * Generates a boolean expression for one predicate, or null if it refers to
+   * a column that does not exist.
+   */
+  protected static String genPredicate(Schema schema, Predicate pred,
+      List<Object> consts) {
+
+    // resolve column names to field numbers
+    int ltype = pred.ltype;
+    Object left = pred.left;
+    if (ltype == AttrType.COLNAME) {
+      left = schema.fieldNumber((String) left);
+      ltype = AttrType.FIELDNO;
+    }
+    int rtype = pred.rtype;
+    Object right = pred.right;
+    if (rtype == AttrType.COLNAME) {
+      right = schema.fieldNumber((String) right);
+      rtype = AttrType.FIELDNO;
+    }
+    if ((ltype == AttrType.FIELDNO && (Integer) left < 0)
+        || (rtype == AttrType.FIELDNO && (Integer) right < 0)) {
+      return null;
+    }
+
+    // compare as the type of the left operand, like Predicate.evaluate
+    int type = ltype;
+    if (ltype == AttrType.FIELDNO) {
+      type = schema.fieldType((Integer) left);
+    }
+    String op = genOperator(pred.oper);
+    String nulls = genNotNull(schema, ltype, left)
+        + genNotNull(schema, rtype, right);
+    switch (type) {
+
+      case AttrType.INTEGER:
+        if (!isOperand(ltype, left, Integer.class)
+            || !isOperand(rtype, right, Integer.class)) {
+          return null;
+        }
+        return nulls + genInt(schema, ltype, left, consts) + ' ' + op + ' '
+            + genInt(schema, rtype, right, consts);
+
+      case AttrType.FLOAT:
+        if (!isOperand(ltype, left, Float.class)
+            || !isOperand(rtype, right, Float.class)) {
+          return null;
+        }
+        return nulls + "Float.compare(" + genFloat(schema, ltype, left, consts)
+            + ", " + genFloat(schema, rtype, right, consts) + ") " + op
+            + " 0";
+
+      case AttrType.STRING:
+        return nulls + "Convert.compareStrings("
+            + genString(schema, ltype, left, consts) + ", "
+            + genString(schema, rtype, right, consts) + ") " + op + " 0";
+
+      default:
+        throw new IllegalStateException("unknown types to compare");
+
+    } // switch (type)
+
+  } // protected static String genPredicate(...)
+
+  /**
+   * Gets the Java operator for an AttrOperator.
+   */
+  protected static String genOperator(int oper) {
+    switch (oper) {
+      case AttrOperator.EQ:
+        return "==";
+      case AttrOperator.NEQ:
+        return "!=";
+      case AttrOperator.GT:
+        return ">";
+      case AttrOperator.GTE:
+        return ">=";
+      case AttrOperator.LT:
+        return "<";
+      case AttrOperator.LTE:
+        return "<=";
+      default:
+        throw new IllegalStateException("unknown operator to evaluate");
+    }
+  }
+
+  /**
+   * Generates a test that an operand is not null, followed by "&&", if it is
+   * a field; a comparison with a null is never true, like Predicate.evaluate.
+   */
+  protected static String genNotNull(Schema schema, int type, Object operand) {
+    if (type != AttrType.FIELDNO) {
+      return "";
+    }
+    int fldno = (Integer) operand;
+    return "(in[" + schema.nullOffset(fldno) + "] & " + schema.nullMask(fldno)
+        + ") == 0 && ";
+  }
+
+  /**
+   * Returns true if an operand is a field, or a literal of the given class
+   * (which Predicate.evaluate would cast it to).
+   */
+  protected static boolean isOperand(int type, Object operand, Class<?> cls) {
+    return type == AttrType.FIELDNO || cls.isInstance(operand);
+  }
+
+  /**
+   * Generates an integer operand: a constant, or a big-endian read of the
+   * field's four bytes (see Convert.getIntValue). Literals are passed in as
+   * constants rather than written into the source, so that plans differing
+   * only in them share one kernel class.
+   */
+  protected static String genInt(Schema schema, int type, Object operand,
+      List<Object> consts) {
+    if (type != AttrType.FIELDNO) {
+      String name = "c" + consts.size();
+      consts.add(operand);
+      return name;
+    }
+    int off = schema.fieldOffset((Integer) operand);
+    return "(((in[" + off + "] & 0xff) << 24) | ((in[" + (off + 1)
+        + "] & 0xff) << 16) | ((in[" + (off + 2) + "] & 0xff) << 8) | (in["
+        + (off + 3) + "] & 0xff))";
+  }
+
+  /**
+   * Generates a float operand: a constant, or the field's four bytes (see
+   * Convert.getFloatValue).
+   */
+  protected static String genFloat(Schema schema, int type, Object operand,
+      List<Object> consts) {
+    if (type != AttrType.FIELDNO) {
+      String name = "c" + consts.size();
+      consts.add(operand);
+      return name;
+    }
+    return "Float.intBitsToFloat(" + genInt(schema, type, operand, consts)
+        + ")";
+  }
+
+  /**
+   * Generates the arguments for Convert.compareStrings: the field's bytes (to
+   * be trimmed, like Convert.getStringValue does), or a constant's bytes.
+   */
+  protected static String genString(Schema schema, int type, Object operand,
+      List<Object> consts) {
+    if (type != AttrType.FIELDNO) {
+      String name = "c" + consts.size();
+      consts.add(((String) operand).getBytes());
+      return name + ", 0, " + name + ".length, false";
+    }
+    int fldno = (Integer) operand;
+    return "in, " + schema.fieldOffset(fldno) + ", "
+        + schema.fieldLength(fldno) + ", true";
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Creates a kernel with the given method bodies, compiling its class on
+   * first use; returns null if it cannot be compiled, so that the caller
+   * falls back to the interpreted plan.
+   */
+  protected static synchronized Kernel instantiate(String filter,
+      String project, Object[] consts) {
+
+    try {
+      StringBuilder types = new StringBuilder();
+      for (Object c : consts) {
+        types.append(constType(c)).append(' ');
+      }
+      String key = filter + "\n" + project + "\n" + types;
+      Class<?> cls = compiled.get(key);
+      if (null == cls) {
+        cls = compileKernel(filter, project, consts);
+        if (null == cls) {
+          return null;
+        }
+        compiled.put(key, cls);
+      }
+      return (Kernel) cls.getConstructor(Object[].class).newInstance(
+          new Object[] { consts });
+    } catch (Exception exc) {
+      return null;
+    }
+
+  } // protected static synchronized Kernel instantiate(...)
+
+  /**
+   * Gets the Java type of a kernel constant's field.
+   */
+  protected static String constType(Object c) {
+    if (c instanceof Integer) {
+      return "int";
+    }
+    if (c instanceof Float) {
+      return "float";
+    }
+    return "byte[]";
+  }
+
+  /**
+   * Generates, compiles, and loads a kernel class in memory, with a field
+   * for each of the given constants; returns null if no compiler is
+   * available or compilation fails.
+   */
+  protected static Class<?> compileKernel(String filter, String project,
+      Object[] consts) throws Exception {
+
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (null == javac) {
+      return null;
+    }
+
+    // write the source
+    String name = "Pipeline" + classCtr++;
+    final StringBuilder source = new StringBuilder();
+    source.append("package " + GEN_PACKAGE + ";\n\n");
+    source.append("import global.Convert;\n");
+    source.append("import relop.PipelineCompiler;\n\n");
+    source.append("public final class " + name
+        + " implements PipelineCompiler.Kernel {\n\n");
+    for (int i = 0; i < consts.length; i++) {
+      source.append("  private final " + constType(consts[i]) + " c" + i
+          + ";\n");
+    }
+    source.append("\n  public " + name + "(Object[] consts) {\n");
+    for (int i = 0; i < consts.length; i++) {
+      String cast = (consts[i] instanceof byte[]) ? "byte[]" : consts[i]
+          .getClass().getSimpleName();
+      source.append("    c" + i + " = (" + cast + ") consts[" + i + "];\n");
+    }
+    source.append("  }\n\n");
+    source.append("  public boolean filter(byte[] in) {\n" + filter + "  }\n\n");
+    source.append("  public void project(byte[] in, byte[] out) {\n" + project
+        + "  }\n\n");
+    source.append("}\n");
+
+    // compile it, keeping the class files in memory
+    final HashMap<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+    StandardJavaFileManager std = javac.getStandardFileManager(null, null, null);
+    JavaFileManager files = new ForwardingJavaFileManager<StandardJavaFileManager>(
+        std) {
+      public JavaFileObject getJavaFileForOutput(Location location,
+          final String className, JavaFileObject.Kind kind, FileObject sibling) {
+        return new SimpleJavaFileObject(URI.create("mem:///"
+            + className.replace('.', '/') + kind.extension), kind) {
+          public OutputStream openOutputStream() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            classes.put(className, out);
+            return out;
+          }
+        };
+      }
+    };
+    JavaFileObject src = new SimpleJavaFileObject(URI.create("string:///"
+        + GEN_PACKAGE.replace('.', '/') + "/" + name + ".java"),
+        JavaFileObject.Kind.SOURCE) {
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    List<String> options = Arrays.asList("-classpath", System
+        .getProperty("java.class.path"));
+    boolean ok = javac.getTask(null, files,
+        new DiagnosticCollector<JavaFileObject>(), options, null,
+        Arrays.asList(src)).call();
+    files.close();
+    if (!ok) {
+      return null;
+    }
+
+    // load it alongside the relop classes
+    ClassLoader loader = new ClassLoader(PipelineCompiler.class.getClassLoader()) {
+      protected Class<?> findClass(String className)
+          throws ClassNotFoundException {
+        ByteArrayOutputStream out = classes.get(className);
+        if (null == out) {
+          throw new ClassNotFoundException(className);
+        }
+        byte[] bytes = out.toByteArray();
+        return defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return loader.loadClass(GEN_PACKAGE + "." + name);
+
+  } // protected static Class<?> compileKernel(...)
+
+} // public class PipelineCompiler
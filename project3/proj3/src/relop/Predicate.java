@@ -91,32 +91,35 @@ public class Predicate {
       rtype = AttrType.FIELDNO;
     }
 
-    // get the values to compare
+    // a comparison with a null field is never true
+    if ((ltype == AttrType.FIELDNO && tuple.isNull((Integer) left))
+        || (rtype == AttrType.FIELDNO && tuple.isNull((Integer) right))) {
+      return false;
+    }
+
+    // get the type to compare as
     int type = ltype;
-    Object lval = left;
     if (ltype == AttrType.FIELDNO) {
-      type = tuple.schema.fieldType((Integer) lval);
-      lval = tuple.getField((Integer) lval);
-    }
-    Object rval = right;
-    if (rtype == AttrType.FIELDNO) {
-      rval = tuple.getField((Integer) rval);
+      type = tuple.schema.fieldType((Integer) left);
     }
 
-    // compare the values
+    // compare the values (numbers are read unboxed, straight from the tuple)
     int comp = 0;
     switch (type) {
 
       case AttrType.INTEGER:
-        comp = ((Integer) lval).compareTo((Integer) rval);
+        comp = Integer.compare(intOperand(tuple, ltype, left), intOperand(
+            tuple, rtype, right));
         break;
 
       case AttrType.FLOAT:
-        comp = ((Float) lval).compareTo((Float) rval);
+        comp = Float.compare(floatOperand(tuple, ltype, left), floatOperand(
+            tuple, rtype, right));
         break;
 
       case AttrType.STRING:
-        comp = ((String) lval).compareTo((String) rval);
+        comp = stringOperand(tuple, ltype, left).compareTo(
+            stringOperand(tuple, rtype, right));
         break;
 
       default:
@@ -152,6 +155,36 @@ public class Predicate {
 
   } // public boolean evaluate(Tuple tuple)
 
+  /**
+   * Gets an integer operand, reading it from the tuple if it is a field.
+   */
+  protected static int intOperand(Tuple tuple, int type, Object operand) {
+    if (type == AttrType.FIELDNO) {
+      return tuple.getIntFld((Integer) operand);
+    }
+    return (Integer) operand;
+  }
+
+  /**
+   * Gets a float operand, reading it from the tuple if it is a field.
+   */
+  protected static float floatOperand(Tuple tuple, int type, Object operand) {
+    if (type == AttrType.FIELDNO) {
+      return tuple.getFloatFld((Integer) operand);
+    }
+    return (Float) operand;
+  }
+
+  /**
+   * Gets a string operand, reading it from the tuple if it is a field.
+   */
+  protected static String stringOperand(Tuple tuple, int type, Object operand) {
+    if (type == AttrType.FIELDNO) {
+      return tuple.getStringFld((Integer) operand);
+    }
+    return (String) operand;
+  }
+
   /**
    * Returns a string representation of the Predicate.
    */
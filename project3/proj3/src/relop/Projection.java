@@ -1,5 +1,10 @@
 package relop;
 
+import global.SortKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The projection operator extracts columns from a relation; unlike in
  * relational algebra, this operator does NOT eliminate duplicate tuples.
@@ -10,6 +15,17 @@ public class Projection extends Iterator {
   private Integer[] fields = null;
   private boolean isOpen = false;
 
+  /** Byte layout of the projected fields: source offset, target offset, length. */
+  private int[] srcOffsets = null;
+  private int[] dstOffsets = null;
+  private int[] lengths = null;
+
+  /** Null flags of the projected fields: source and target byte and mask. */
+  private int[] srcNulls = null;
+  private int[] srcMasks = null;
+  private int[] dstNulls = null;
+  private int[] dstMasks = null;
+
   /**
    * Constructs a projection, given the underlying iterator and field numbers.
    */
@@ -21,6 +37,22 @@ public class Projection extends Iterator {
     for (Integer i : fields) {
       schema.initField(ind++, iter.schema, i);
     }
+    srcOffsets = new int[fields.length];
+    dstOffsets = new int[fields.length];
+    lengths = new int[fields.length];
+    srcNulls = new int[fields.length];
+    srcMasks = new int[fields.length];
+    dstNulls = new int[fields.length];
+    dstMasks = new int[fields.length];
+    for (ind = 0; ind < fields.length; ind++) {
+      srcOffsets[ind] = iter.schema.fieldOffset(fields[ind]);
+      dstOffsets[ind] = schema.fieldOffset(ind);
+      lengths[ind] = schema.fieldLength(ind);
+      srcNulls[ind] = iter.schema.nullOffset(fields[ind]);
+      srcMasks[ind] = iter.schema.nullMask(fields[ind]);
+      dstNulls[ind] = schema.nullOffset(ind);
+      dstMasks[ind] = schema.nullMask(ind);
+    }
     iter.restart();
     isOpen = true;
   }
@@ -43,6 +75,15 @@ public class Projection extends Iterator {
     isOpen = true;
   }
 
+  /**
+   * Projection copies out of its child's tuples right away, so the child may
+   * recycle them too.
+   */
+  public void setReuse(boolean reuse) {
+    super.setReuse(reuse);
+    iter.setReuse(reuse);
+  }
+
   /**
    * Returns true if the iterator is open; false otherwise.
    */
@@ -73,13 +114,82 @@ public class Projection extends Iterator {
   public Tuple getNext() {
     if (false == hasNext()) throw new IllegalStateException();
 
-    Tuple t = iter.getNext();
-    Tuple retVal = new Tuple(schema);
-    int ind = 0;
-    for (Integer i : fields) {
-      retVal.setField(ind++, t.getField(i));
+    return project(iter.getNext(), 0);
+  }
+
+  /**
+   * Projects whole batches from the child in place.
+   */
+  public int nextBatch(Tuple[] batch) {
+    int n = iter.nextBatch(batch);
+    for (int i = 0; i < n; i++) {
+      batch[i] = project(batch[i], i);
     }
+    return n;
+  }
 
+  /**
+   * Pushes each projected tuple on as the child produces it.
+   */
+  public boolean produce(final TupleConsumer consumer) {
+    return iter.produce(new TupleConsumer() {
+      public boolean consume(Tuple tuple) {
+        return consumer.consume(project(tuple, 0));
+      }
+    });
+  }
+
+  /**
+   * Gets the order of the resulting tuples: that of the underlying iterator,
+   * for as many of its keys as are projected.
+   */
+  public SortKey[] getOrder() {
+    SortKey[] order = iter.getOrder();
+    if (null == order) {
+      return null;
+    }
+    ArrayList<SortKey> keys = new ArrayList<SortKey>();
+    for (SortKey key : order) {
+      int fldno = Arrays.asList(fields).indexOf(key.field);
+      if (fldno < 0) {
+        break;
+      }
+      keys.add(new SortKey(fldno, key.isDesc));
+    }
+    return keys.isEmpty() ? null : keys.toArray(new SortKey[keys.size()]);
+  }
+
+  /**
+   * Gets the underlying iterator.
+   */
+  Iterator getChild() {
+    return iter;
+  }
+
+  /**
+   * Gets the projected field numbers.
+   */
+  Integer[] getFields() {
+    return fields;
+  }
+
+  /**
+   * Copies the projected fields byte for byte (the layouts are fixed-width,
+   * so no values need to be decoded), and their null flags, into the recycled
+   * tuple for the slot if reuse is enabled.
+   */
+  private Tuple project(Tuple t, int slot) {
+    Tuple retVal = reuse ? recycle(slot) : new Tuple(schema);
+    byte[] src = t.getData();
+    byte[] dst = retVal.getData();
+    for (int i = 0; i < lengths.length; i++) {
+      System.arraycopy(src, srcOffsets[i], dst, dstOffsets[i], lengths[i]);
+      if ((src[srcNulls[i]] & srcMasks[i]) != 0) {
+        dst[dstNulls[i]] |= dstMasks[i];
+      } else {
+        dst[dstNulls[i]] &= ~dstMasks[i];
+      }
+    }
     return retVal;
   }
 
@@ -4,7 +4,13 @@ import global.AttrType;
 
 /**
  * Each tuple has a schema that defines the logical view of the raw bytes; it
- * describes the types, lengths, offsets, and names of a tuple's fields.
+ * describes the types, lengths, offsets, and names of a tuple's fields. The
+ * fields are followed by a bitmap with one bit per field, set if the field is
+ * null; a joined schema keeps each side's bitmap after that side's fields.
+ * Every record is thus (fields + 7) / 8 bytes longer than its fields, so heap
+ * files written before the bitmap was added do not match their schemas. The
+ * layout is worked out as fields are set, so that a finished schema is only
+ * ever read, and can be shared between threads.
  */
 public class Schema {
 
@@ -25,6 +31,12 @@ public class Schema {
   /** Column names of the fields. */
   protected String[] names;
 
+  /** Bit positions (in the tuple) of the fields' null flags. */
+  protected int[] nullBits;
+
+  /** Size of a tuple (in bytes), including the null bitmap. */
+  protected int length;
+
   // --------------------------------------------------------------------------
 
   /**
@@ -35,6 +47,8 @@ public class Schema {
     lengths = new int[fldcnt];
     offsets = new int[fldcnt];
     names = new String[fldcnt];
+    nullBits = new int[fldcnt];
+    layout();
   }
 
   /**
@@ -54,9 +68,25 @@ public class Schema {
     } else {
       offsets[fldno] = 0;
     }
+    layout();
 
   } // public void initField(int fldno, int type, int length, String name)
 
+  /**
+   * Works out the tuple length and where the null bitmap goes, i.e. after
+   * all of the fields (those not set yet counting as empty).
+   */
+  private void layout() {
+    int len = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      len += lengths[i];
+    }
+    for (int i = 0; i < nullBits.length; i++) {
+      nullBits[i] = len * 8 + i;
+    }
+    length = len + (nullBits.length + 7) / 8;
+  }
+
   /**
    * Copies a field from another schema.
    * 
@@ -70,7 +100,9 @@ public class Schema {
   }
 
   /**
-   * Builds and returns a new schema resulting from joining two schemas.
+   * Builds and returns a new schema resulting from joining two schemas; its
+   * tuples are those of s1 followed by those of s2, byte for byte (see
+   * Tuple.join).
    * 
    * @param s1 the left schema
    * @param s2 the right schema
@@ -82,14 +114,22 @@ public class Schema {
     int s2cnt = s2.getCount();
     Schema schema = new Schema(s1cnt + s2cnt);
 
-    // copy all fields from s1 and s2
-    int fldno = 0;
-    for (int i = 0; i < s1cnt; i++) {
-      schema.initField(fldno++, s1, i);
-    }
+    // copy all fields from s1 and s2, shifting the offsets of s2
+    int s1len = s1.getLength();
+    int s2len = s2.getLength();
+    System.arraycopy(s1.types, 0, schema.types, 0, s1cnt);
+    System.arraycopy(s2.types, 0, schema.types, s1cnt, s2cnt);
+    System.arraycopy(s1.lengths, 0, schema.lengths, 0, s1cnt);
+    System.arraycopy(s2.lengths, 0, schema.lengths, s1cnt, s2cnt);
+    System.arraycopy(s1.names, 0, schema.names, 0, s1cnt);
+    System.arraycopy(s2.names, 0, schema.names, s1cnt, s2cnt);
+    System.arraycopy(s1.offsets, 0, schema.offsets, 0, s1cnt);
+    System.arraycopy(s1.nullBits, 0, schema.nullBits, 0, s1cnt);
     for (int i = 0; i < s2cnt; i++) {
-      schema.initField(fldno++, s2, i);
+      schema.offsets[s1cnt + i] = s1len + s2.offsets[i];
+      schema.nullBits[s1cnt + i] = s1len * 8 + s2.nullBits[i];
     }
+    schema.length = s1len + s2len;
 
     // return the resulting schema
     return schema;
@@ -107,14 +147,10 @@ public class Schema {
   }
 
   /**
-   * Gets the size of a tuple (in bytes).
+   * Gets the size of a tuple (in bytes), including the null bitmap.
    */
   public int getLength() {
-    int len = 0;
-    for (int i = 0; i < lengths.length; i++) {
-      len += lengths[i];
-    }
-    return len;
+    return length;
   }
 
   /**
@@ -138,6 +174,20 @@ public class Schema {
     return offsets[fldno];
   }
 
+  /**
+   * Gets the offset of the byte holding the given field's null flag.
+   */
+  public int nullOffset(int fldno) {
+    return nullBits[fldno] >>> 3;
+  }
+
+  /**
+   * Gets the mask of the given field's null flag, within its byte.
+   */
+  public int nullMask(int fldno) {
+    return 1 << (nullBits[fldno] & 7);
+  }
+
   /**
    * Gets the name of the given field.
    */
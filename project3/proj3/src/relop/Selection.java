@@ -1,5 +1,7 @@
 package relop;
 
+import global.SortKey;
+
 /**
  * The selection operator specifies which tuples to retain under a condition; in
  * Minibase, this condition is simply a set of independent predicates logically
@@ -46,6 +48,14 @@ public class Selection extends Iterator {
     foundNext = false;
   }
 
+  /**
+   * Selection passes its child's tuples through, so the child recycles them.
+   */
+  public void setReuse(boolean reuse) {
+    super.setReuse(reuse);
+    iter.setReuse(reuse);
+  }
+
   /**
    * Returns true if the iterator is open; false otherwise.
    */
@@ -85,6 +95,45 @@ public class Selection extends Iterator {
     return next;
   }
 
+  /**
+   * Filters whole batches from the child in place, compacting the qualifying
+   * tuples to the front of the batch.
+   */
+  public int nextBatch(Tuple[] batch) {
+    if (true == foundNext) {
+      // hand over the tuple already found by hasNext
+      foundNext = false;
+      batch[0] = next;
+      return 1;
+    }
+    int cnt = 0;
+    int n = 0;
+    while (0 == cnt && 0 < (n = iter.nextBatch(batch))) {
+      for (int i = 0; i < n; i++) {
+        if (true == qualify(batch[i])) {
+          batch[cnt++] = batch[i];
+        }
+      }
+    }
+    return cnt;
+  }
+
+  /**
+   * Pushes the qualifying tuples on as the child produces them.
+   */
+  public boolean produce(final TupleConsumer consumer) {
+    if (true == foundNext) {
+      // hand over the tuple already found by hasNext
+      foundNext = false;
+      if (false == consumer.consume(next)) return false;
+    }
+    return iter.produce(new TupleConsumer() {
+      public boolean consume(Tuple tuple) {
+        return (false == qualify(tuple)) || consumer.consume(tuple);
+      }
+    });
+  }
+
   private void findNext() {
     foundNext = false;
     while (!foundNext && iter.hasNext()) {
@@ -96,6 +145,28 @@ public class Selection extends Iterator {
     }
   }
 
+  /**
+   * Gets the order of the resulting tuples, i.e. that of the underlying
+   * iterator.
+   */
+  public SortKey[] getOrder() {
+    return iter.getOrder();
+  }
+
+  /**
+   * Gets the underlying iterator.
+   */
+  Iterator getChild() {
+    return iter;
+  }
+
+  /**
+   * Gets the predicates, which are connected by OR.
+   */
+  Predicate[] getPredicates() {
+    return preds;
+  }
+
   private boolean qualify(Tuple t) {
     boolean retVal = false;
     for (Predicate p : preds) {
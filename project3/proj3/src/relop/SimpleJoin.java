@@ -90,41 +90,32 @@ public class SimpleJoin extends Iterator {
     return next;
   }
 
+  /**
+   * Looks for the next qualifying pair, in a loop rather than recursively, so
+   * that long runs of pairs that fail do not overflow the stack.
+   */
   private void findNext() {
     foundNext = false;
-    Tuple rTuple = null;
-    
-    if (null == lTuple) {
-      if (true == left.hasNext()) 
-        lTuple = left.getNext();
-      else 
-        return;
-    }
-
-    if (right.hasNext()) {
-      rTuple = right.getNext();
-    }
-    else {
-      right.restart();
-      
-      if (right.hasNext()) 
-        rTuple = right.getNext();
-      else 
-        findNext();
-      
-      if (left.hasNext()) 
+    while (true) {
+      if (null == lTuple) {
+        if (!left.hasNext()) {
+          // left side is exhausted; stay that way until restarted
+          return;
+        }
         lTuple = left.getNext();
-      else
+        right.restart();
+      }
+      if (!right.hasNext()) {
+        lTuple = null;
+        continue;
+      }
+      Tuple t = Tuple.join(lTuple, right.getNext(), schema);
+      if (true == qualify(t)) {
+        next = t;
+        foundNext = true;
         return;
+      }
     }
-
-    Tuple t = Tuple.join(lTuple, rTuple, schema);
-    if (true == qualify(t)) {
-      next = t;
-      foundNext = true;
-    }
-    else
-      findNext();
   }
 
   private boolean qualify(Tuple t) {
@@ -0,0 +1,389 @@
+package relop;
+
+import global.AttrType;
+import global.Convert;
+import global.GlobalConst;
+import global.SortKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort (see textbook, 3rd edition, section 13.3, page 424).
+ * The input is read into memory up to the budget, sorted, and written out as
+ * a run; runs are then merged, as many at a time as there are pages to read
+ * them with, until one merge can produce the result. An input that fits in
+ * memory is never written out. The sort is stable, and it runs on the first
+ * request for a tuple.
+ */
+public class Sort extends Iterator {
+
+  /** Default memory budget, in pages. */
+  public static final int DEFAULT_MEMORY_PAGES = 64;
+
+  private Iterator input = null;
+  private SortKey[] keys = null;
+  private int[] cols = null;
+  private boolean[] desc = null;
+  private int memoryPages;
+
+  private boolean isOpen = false;
+
+  // true once the input has been read and sorted
+  private boolean sorted = false;
+
+  /** The sorted input when it fit in memory, and where we are in it. */
+  private Tuple[] memory = null;
+  private int pos = 0;
+
+  /** Otherwise, the runs on disk, and the merge producing the result. */
+  private List<SpillFile> runs = null;
+  private Merge merge = null;
+  private Tuple next = null;
+
+  /** Orders tuples on the keys, in the given direction. */
+  private final Comparator<Tuple> order = new Comparator<Tuple>() {
+    public int compare(Tuple a, Tuple b) {
+      for (int i = 0; i < cols.length; i++) {
+        int c = Sort.compare(a, cols[i], b, cols[i]);
+        if (c != 0) {
+          return desc[i] ? -c : c;
+        }
+      }
+      return 0;
+    }
+  };
+
+  /**
+   * Constructs a sort, given the input and the keys to sort on (by field
+   * number or column name, most significant first).
+   */
+  public Sort(Iterator input, SortKey... keys) {
+    this(input, DEFAULT_MEMORY_PAGES, keys);
+  }
+
+  /**
+   * Constructs a sort, given the input, the memory budget in pages, and the
+   * keys to sort on.
+   */
+  public Sort(Iterator input, int memoryPages, SortKey... keys) {
+    if (memoryPages < 3) {
+      throw new IllegalArgumentException("memory budget too small");
+    }
+    this.input = input;
+    this.memoryPages = memoryPages;
+    this.schema = input.schema;
+    this.keys = new SortKey[keys.length];
+    cols = new int[keys.length];
+    desc = new boolean[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      cols[i] = fieldNumber(schema, keys[i].field);
+      desc[i] = keys[i].isDesc;
+      this.keys[i] = new SortKey(cols[i], desc[i]);
+    }
+    isOpen = true;
+  }
+
+  /**
+   * Gets the field number of a sort key's field, given as either.
+   * 
+   * @throws IllegalArgumentException if there is no such field
+   */
+  static int fieldNumber(Schema schema, Object field) {
+    int fldno = (field instanceof Integer) ? (Integer) field
+        : schema.fieldNumber((String) field);
+    if (fldno < 0 || fldno >= schema.getCount()) {
+      throw new IllegalArgumentException("no such field: " + field);
+    }
+    return fldno;
+  }
+
+  /**
+   * Compares a field of one tuple with a field (of the same type) of another,
+   * in place; strings compare as if trimmed, like Convert.getStringValue, and
+   * nulls come before all values.
+   */
+  static int compare(Tuple a, int acol, Tuple b, int bcol) {
+    boolean anull = a.isNull(acol);
+    boolean bnull = b.isNull(bcol);
+    if (anull || bnull) {
+      return (anull == bnull) ? 0 : (anull ? -1 : 1);
+    }
+    Schema as = a.schema;
+    Schema bs = b.schema;
+    byte[] ad = a.getData();
+    byte[] bd = b.getData();
+    switch (as.fieldType(acol)) {
+
+      case AttrType.INTEGER:
+        return Integer.compare(Convert.getIntValue(as.fieldOffset(acol), ad),
+            Convert.getIntValue(bs.fieldOffset(bcol), bd));
+
+      case AttrType.FLOAT:
+        return Float.compare(Convert.getFloatValue(as.fieldOffset(acol), ad),
+            Convert.getFloatValue(bs.fieldOffset(bcol), bd));
+
+      default:
+        return Convert.compareStrings(ad, as.fieldOffset(acol),
+            as.fieldLength(acol), true, bd, bs.fieldOffset(bcol),
+            bs.fieldLength(bcol), true);
+
+    } // switch
+  }
+
+  /**
+   * Gets the order of the resulting tuples, i.e. the sort keys.
+   */
+  public SortKey[] getOrder() {
+    return keys.clone();
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.print("SORT (");
+    for (int i = 0; i < cols.length; i++) {
+      System.out.print((i > 0 ? ", " : "") + schema.fieldName(cols[i])
+          + (desc[i] ? " DESC" : ""));
+    }
+    System.out.println(", " + memoryPages + " pages)");
+    input.explain(depth + 1);
+  }
+
+  /**
+   * Restarts the iterator; once sorted, the result is kept, and read again
+   * from the start.
+   */
+  public void restart() {
+    if (!sorted) {
+      input.restart();
+    }
+    pos = 0;
+    next = null;
+    if (null != merge) {
+      merge.close();
+      merge = new Merge(runs);
+    }
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages) and
+   * deleting the runs.
+   */
+  public void close() {
+    input.close();
+    if (null != merge) {
+      merge.close();
+      merge = null;
+    }
+    if (null != runs) {
+      for (SpillFile f : runs) {
+        f.close();
+      }
+    }
+    runs = null;
+    memory = null;
+    next = null;
+    sorted = false;
+    SpillFile.purge();
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (!isOpen) {
+      return false;
+    }
+    sort();
+    if (null != memory) {
+      return pos < memory.length;
+    }
+    if (null == next) {
+      next = merge.next();
+    }
+    return null != next;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (!hasNext()) {
+      throw new IllegalStateException();
+    }
+    if (null != memory) {
+      return memory[pos++];
+    }
+    Tuple t = next;
+    next = null;
+    return t;
+  }
+
+  /**
+   * Reads and sorts the input, unless that is already done.
+   */
+  private void sort() {
+    if (sorted) {
+      return;
+    }
+    long budget = (long) memoryPages * GlobalConst.PAGE_SIZE;
+    int capacity = (int) Math.max(1, budget / schema.getLength());
+    ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    runs = new ArrayList<SpillFile>();
+    Tuple[] batch = new Tuple[BATCH_SIZE];
+    for (int n = input.nextBatch(batch); n > 0; n = input.nextBatch(batch)) {
+      for (int i = 0; i < n; i++) {
+        Tuple t = batch[i];
+        if (input.reuse) {
+          t = new Tuple(schema, t.getData().clone());
+        }
+        buffer.add(t);
+        if (buffer.size() == capacity) {
+          runs.add(writeRun(buffer));
+          buffer.clear();
+        }
+      }
+    }
+
+    if (runs.isEmpty()) {
+      // it all fit
+      memory = buffer.toArray(new Tuple[buffer.size()]);
+      Arrays.sort(memory, order);
+      runs = null;
+    } else {
+      if (!buffer.isEmpty()) {
+        runs.add(writeRun(buffer));
+      }
+      buffer = null;
+
+      // merge until one pass is left, reading one page per run
+      int fanIn = memoryPages - 1;
+      while (runs.size() > fanIn) {
+        List<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+          List<SpillFile> group = runs.subList(i,
+              Math.min(runs.size(), i + fanIn));
+          if (group.size() == 1) {
+            merged.add(group.get(0));
+            continue;
+          }
+          Merge m = new Merge(group);
+          SpillFile out = new SpillFile();
+          for (Tuple t = m.next(); t != null; t = m.next()) {
+            out.insertRecord(t.getData());
+          }
+          m.close();
+          for (SpillFile f : group) {
+            f.close();
+          }
+          merged.add(out);
+        }
+        runs = merged;
+      }
+      merge = new Merge(runs);
+    }
+    sorted = true;
+  }
+
+  /**
+   * Sorts the buffered tuples and writes them out as a run.
+   */
+  private SpillFile writeRun(ArrayList<Tuple> buffer) {
+    Tuple[] tuples = buffer.toArray(new Tuple[buffer.size()]);
+    Arrays.sort(tuples, order);
+    SpillFile run = new SpillFile();
+    for (Tuple t : tuples) {
+      run.insertRecord(t.getData());
+    }
+    return run;
+  }
+
+  /**
+   * Merges sorted runs, keeping equal tuples in run order.
+   */
+  private class Merge {
+
+    /** A run being read, with its next tuple. */
+    private class Head {
+      FileScan scan;
+      Tuple tuple;
+      int index;
+    }
+
+    private PriorityQueue<Head> heap;
+
+    /**
+     * Opens a scan on each run, and queues up their first tuples.
+     */
+    public Merge(List<SpillFile> files) {
+      heap = new PriorityQueue<Head>(Math.max(1, files.size()),
+          new Comparator<Head>() {
+            public int compare(Head a, Head b) {
+              int c = order.compare(a.tuple, b.tuple);
+              return (c != 0) ? c : Integer.compare(a.index, b.index);
+            }
+          });
+      for (int i = 0; i < files.size(); i++) {
+        Head h = new Head();
+        h.scan = new FileScan(schema, files.get(i));
+        h.index = i;
+        advance(h);
+      }
+    }
+
+    /**
+     * Gets the next tuple of the merge, or null if there are no more.
+     */
+    public Tuple next() {
+      Head h = heap.poll();
+      if (null == h) {
+        return null;
+      }
+      Tuple t = h.tuple;
+      advance(h);
+      return t;
+    }
+
+    /**
+     * Moves a run on to its next tuple, closing it if there is none.
+     */
+    private void advance(Head h) {
+      if (h.scan.hasNext()) {
+        h.tuple = h.scan.getNext();
+        heap.add(h);
+      } else {
+        h.scan.close();
+      }
+    }
+
+    /**
+     * Closes the runs still being read.
+     */
+    public void close() {
+      for (Head h : heap) {
+        h.scan.close();
+      }
+      heap.clear();
+    }
+
+  } // private class Merge
+
+} // public class Sort extends Iterator
@@ -0,0 +1,243 @@
+package relop;
+
+import global.SortKey;
+
+import java.util.ArrayList;
+
+/**
+ * Implements the sort-merge join (see textbook, 3rd edition, section 14.4.2,
+ * page 458). An input that is not already ordered on its join column (see
+ * getOrder) is sorted first; then both are read once, in step, and each left
+ * tuple is joined with the group of right tuples that have its key. The group
+ * is kept in memory, so that a run of equal left keys can go over it again.
+ * The result is in the order of the join keys.
+ */
+public class SortMergeJoin extends Iterator {
+
+  private Iterator left = null;
+  private Iterator right = null;
+  private int lcol;
+  private int rcol;
+  private boolean desc;
+  private boolean isOpen = false;
+
+  /** The current left tuple, and the right tuples with its key. */
+  private Tuple lTuple = null;
+  private ArrayList<Tuple> group = new ArrayList<Tuple>();
+  private int groupPos = 0;
+
+  /** The next right tuple, not yet in a group; null once right is done. */
+  private Tuple rTuple = null;
+  private boolean started = false;
+  private boolean done = false;
+
+  private Tuple nextTuple = null;
+
+  /**
+   * Constructs a join, given the left and right iterators and which columns
+   * to match (relative to their individual schemas), in ascending order.
+   */
+  public SortMergeJoin(Iterator left, Iterator right, Integer lcol,
+      Integer rcol) {
+    this(left, right, new SortKey(lcol, false), new SortKey(rcol, false));
+  }
+
+  /**
+   * Constructs a join, given the left and right iterators and the keys to
+   * match on (by field number or column name, and in the same direction).
+   */
+  public SortMergeJoin(Iterator left, Iterator right, SortKey lkey,
+      SortKey rkey) {
+    this(left, right, lkey, rkey, Sort.DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * Constructs a join, given the left and right iterators, the keys to match
+   * on, and the memory budget in pages for each sort (if any).
+   * 
+   * @throws IllegalArgumentException if the keys do not go together
+   */
+  public SortMergeJoin(Iterator left, Iterator right, SortKey lkey,
+      SortKey rkey, int memoryPages) {
+    lcol = Sort.fieldNumber(left.schema, lkey.field);
+    rcol = Sort.fieldNumber(right.schema, rkey.field);
+    if (lkey.isDesc != rkey.isDesc) {
+      throw new IllegalArgumentException("keys sorted in different directions");
+    }
+    if (left.schema.fieldType(lcol) != right.schema.fieldType(rcol)) {
+      throw new IllegalArgumentException("keys of different types");
+    }
+    desc = lkey.isDesc;
+    this.schema = Schema.join(left.schema, right.schema);
+    this.left = ordered(left, lcol, desc, memoryPages);
+    this.right = ordered(right, rcol, desc, memoryPages);
+    isOpen = true;
+  }
+
+  /**
+   * Returns the input if it is already ordered on the given column, or else
+   * a sort of it.
+   */
+  static Iterator ordered(Iterator input, int col, boolean desc,
+      int memoryPages) {
+    SortKey[] order = input.getOrder();
+    if (null != order && order.length > 0
+        && Integer.valueOf(col).equals(order[0].field)
+        && order[0].isDesc == desc) {
+      return input;
+    }
+    return new Sort(input, memoryPages, new SortKey(col, desc));
+  }
+
+  /**
+   * Gets the order of the resulting tuples, i.e. on the left join column.
+   */
+  public SortKey[] getOrder() {
+    return new SortKey[] { new SortKey(lcol, desc) };
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    System.out.println("SORT MERGE JOIN (" + left.schema.fieldName(lcol)
+        + " = " + right.schema.fieldName(rcol) + (desc ? " DESC" : "") + ")");
+    left.explain(depth + 1);
+    right.explain(depth + 1);
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    left.restart();
+    right.restart();
+    lTuple = null;
+    group.clear();
+    groupPos = 0;
+    rTuple = null;
+    started = false;
+    done = false;
+    nextTuple = null;
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    left.close();
+    right.close();
+    group.clear();
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (nextTuple == null) {
+      nextTuple = findNext();
+    }
+    return nextTuple != null;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (!hasNext()) {
+      throw new IllegalStateException();
+    }
+    Tuple retVal = nextTuple;
+    nextTuple = null;
+    return retVal;
+  }
+
+  /**
+   * Returns the next joined tuple, or null if there are no more.
+   */
+  private Tuple findNext() {
+    if (!isOpen || done) {
+      return null;
+    }
+    while (true) {
+      if (null != lTuple && groupPos < group.size()) {
+        return Tuple.join(lTuple, group.get(groupPos++), schema);
+      }
+
+      // move on to the next left tuple
+      if (!left.hasNext()) {
+        done = true;
+        return null;
+      }
+      lTuple = left.getNext();
+      if (lTuple.isNull(lcol)) {
+        // a null key matches nothing
+        groupPos = group.size();
+        continue;
+      }
+      groupPos = 0;
+      if (!group.isEmpty() && compare(lTuple, group.get(0)) == 0) {
+        // same key again
+        continue;
+      }
+      group.clear();
+
+      // skip the right tuples that come before it
+      if (!started) {
+        rTuple = nextRight();
+        started = true;
+      }
+      while (null != rTuple && compare(lTuple, rTuple) > 0) {
+        rTuple = nextRight();
+      }
+      if (null == rTuple) {
+        // nothing left on the right to match
+        done = true;
+        return null;
+      }
+
+      // collect the right tuples with its key
+      while (null != rTuple && compare(lTuple, rTuple) == 0) {
+        group.add(rTuple);
+        rTuple = nextRight();
+      }
+    }
+  }
+
+  /**
+   * Gets the next right tuple (copied if the right side recycles them), or
+   * null if there are no more.
+   */
+  private Tuple nextRight() {
+    if (!right.hasNext()) {
+      return null;
+    }
+    Tuple t = right.getNext();
+    if (right.reuse) {
+      t = new Tuple(right.schema, t.getData().clone());
+    }
+    return t;
+  }
+
+  /**
+   * Compares the join keys of a left and a right tuple, in the join order.
+   */
+  private int compare(Tuple l, Tuple r) {
+    int c = Sort.compare(l, lcol, r, rcol);
+    return desc ? -c : c;
+  }
+
+} // public class SortMergeJoin extends Iterator
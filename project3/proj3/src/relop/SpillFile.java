@@ -0,0 +1,70 @@
+package relop;
+
+import heap.HeapFile;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A temporary heap file for operators to spill to, which its owner deletes
+ * with close() as soon as it is done with it. A plain temporary HeapFile
+ * deletes itself from its finalizer, i.e. on the garbage collector's thread,
+ * which frees pages behind the back of the (single threaded) buffer manager
+ * while a query is using it. As a backstop, a spill file dropped without being
+ * closed instead queues itself there, and is deleted on a query's thread the
+ * next time a spill file is created or closed, or when purge is called.
+ */
+class SpillFile extends HeapFile {
+
+  /** Spill files found to be garbage, waiting to be deleted. */
+  private static final ConcurrentLinkedQueue<SpillFile> garbage =
+      new ConcurrentLinkedQueue<SpillFile>();
+
+  private boolean deleted = false;
+
+  /**
+   * Creates an empty spill file, first deleting any that were collected.
+   */
+  public SpillFile() {
+    super(null);
+    purge();
+  }
+
+  /**
+   * Deletes the file (no scan may still be open on it), along with any
+   * that were collected.
+   */
+  public void close() {
+    deleteFile();
+    purge();
+  }
+
+  /**
+   * Deletes the file, unless that is already done.
+   */
+  public void deleteFile() {
+    if (!deleted) {
+      deleted = true;
+      super.deleteFile();
+    }
+  }
+
+  /**
+   * Deletes the spill files that were garbage collected without being
+   * closed; operators call this when they are closed.
+   */
+  public static void purge() {
+    for (SpillFile f = garbage.poll(); f != null; f = garbage.poll()) {
+      f.deleteFile();
+    }
+  }
+
+  /**
+   * Queues the file to be deleted by the next purge.
+   */
+  protected void finalize() {
+    if (!deleted) {
+      garbage.add(this);
+    }
+  }
+
+} // class SpillFile extends HeapFile
@@ -0,0 +1,235 @@
+package relop;
+
+/**
+ * Multi-way join of a fact input with several dimension inputs, each on its
+ * own pair of columns. Every dimension is hashed into its own table in
+ * memory; then the fact input is read once, each fact tuple is probed against
+ * the tables in turn (stopping at the first one without a match), and one
+ * result is made per combination of matches, with no intermediate results in
+ * between. The result has the fact columns followed by the columns of each
+ * dimension, in order, as if from a left-deep tree of joins.
+ */
+public class StarJoin extends Iterator {
+
+  private Iterator fact = null;
+  private Iterator[] dims = null;
+  private int[] factCols = null;
+  private int[] dimCols = null;
+  private boolean isOpen = false;
+
+  /** Where the keys are in the fact tuples, one per dimension. */
+  private JoinHashTable.Key[] factKeys = null;
+
+  /** The dimensions hashed on their join columns, or null until needed. */
+  private JoinHashTable[] tables = null;
+
+  /** Where each dimension's columns start in a result. */
+  private int[] offsets = null;
+
+  /** The current fact tuple, and its current match in each dimension. */
+  private Tuple factTuple = null;
+  private int[] cursors = null;
+
+  private Tuple nextTuple = null;
+
+  /**
+   * Constructs a star join, given the fact and dimension iterators, and for
+   * each dimension, which fact column to match with which of its columns.
+   * Nothing is read yet: the dimensions are hashed on the first request for
+   * a tuple.
+   * 
+   * @throws IllegalArgumentException if the columns do not pair up
+   */
+  public StarJoin(Iterator fact, Iterator[] dims, int[] factCols,
+      int[] dimCols) {
+    if (dims.length == 0 || dims.length != factCols.length
+        || dims.length != dimCols.length) {
+      throw new IllegalArgumentException("columns do not pair up");
+    }
+    this.fact = fact;
+    this.dims = dims.clone();
+    this.factCols = factCols.clone();
+    this.dimCols = dimCols.clone();
+    factKeys = new JoinHashTable.Key[dims.length];
+    offsets = new int[dims.length];
+    Schema joined = fact.schema;
+    for (int i = 0; i < dims.length; i++) {
+      factKeys[i] = new JoinHashTable.Key(fact.schema, factCols[i]);
+      if (!factKeys[i].isComparable(new JoinHashTable.Key(dims[i].schema,
+          dimCols[i]))) {
+        throw new IllegalArgumentException("keys of different types");
+      }
+      offsets[i] = joined.getLength();
+      joined = Schema.join(joined, dims[i].schema);
+    }
+    this.schema = joined;
+    cursors = new int[dims.length];
+    isOpen = true;
+  }
+
+  /**
+   * Gives a one-line explaination of the iterator, repeats the call on any
+   * child iterators, and increases the indent depth along the way.
+   */
+  public void explain(int depth) {
+    indent(depth);
+    StringBuilder str = new StringBuilder("STAR JOIN (");
+    for (int i = 0; i < dims.length; i++) {
+      if (i > 0) {
+        str.append(", ");
+      }
+      str.append(fact.schema.fieldName(factCols[i])).append(" = ").append(
+          dims[i].schema.fieldName(dimCols[i]));
+    }
+    System.out.println(str.append(")"));
+    fact.explain(depth + 1);
+    for (Iterator dim : dims) {
+      dim.explain(depth + 1);
+    }
+  }
+
+  /**
+   * Restarts the iterator, i.e. as if it were just constructed.
+   */
+  public void restart() {
+    fact.restart();
+    for (Iterator dim : dims) {
+      dim.restart();
+    }
+    tables = null;
+    factTuple = null;
+    nextTuple = null;
+    isOpen = true;
+  }
+
+  /**
+   * Returns true if the iterator is open; false otherwise.
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * Closes the iterator, releasing any resources (i.e. pinned pages).
+   */
+  public void close() {
+    fact.close();
+    for (Iterator dim : dims) {
+      dim.close();
+    }
+    tables = null;
+    factTuple = null;
+    isOpen = false;
+  }
+
+  /**
+   * Returns true if there are more tuples, false otherwise.
+   */
+  public boolean hasNext() {
+    if (nextTuple == null) {
+      nextTuple = findNext();
+    }
+    return nextTuple != null;
+  }
+
+  /**
+   * Gets the next tuple in the iteration.
+   * 
+   * @throws IllegalStateException if no more tuples
+   */
+  public Tuple getNext() {
+    if (!hasNext()) {
+      throw new IllegalStateException();
+    }
+    Tuple retVal = nextTuple;
+    nextTuple = null;
+    return retVal;
+  }
+
+  /**
+   * Hashes every dimension on its join column.
+   */
+  private void build() {
+    tables = new JoinHashTable[dims.length];
+    Tuple[] batch = new Tuple[BATCH_SIZE];
+    for (int i = 0; i < dims.length; i++) {
+      Iterator dim = dims[i];
+      tables[i] = new JoinHashTable(dim.schema, dimCols[i]);
+      for (int n = dim.nextBatch(batch); n > 0; n = dim.nextBatch(batch)) {
+        for (int j = 0; j < n; j++) {
+          Tuple t = batch[j];
+          if (dim.reuse) {
+            t = new Tuple(dim.schema, t.getData().clone());
+          }
+          tables[i].add(t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the next joined tuple, or null if there are no more.
+   */
+  private Tuple findNext() {
+    if (!isOpen) {
+      return null;
+    }
+    if (null == tables) {
+      build();
+    }
+    if (null == factTuple || !advance()) {
+      if (!nextFact()) {
+        return null;
+      }
+    }
+
+    // copy the fact record and each matching dimension record
+    Tuple tuple = new Tuple(schema);
+    byte[] data = tuple.getData();
+    System.arraycopy(factTuple.getData(), 0, data, 0, fact.schema.getLength());
+    for (int i = 0; i < dims.length; i++) {
+      System.arraycopy(tables[i].get(cursors[i]).getData(), 0, data,
+          offsets[i], dims[i].schema.getLength());
+    }
+    return tuple;
+  }
+
+  /**
+   * Moves on to the next combination of matches for the current fact tuple,
+   * the last dimension fastest; returns false if there are no more.
+   */
+  private boolean advance() {
+    for (int i = dims.length - 1; i >= 0; i--) {
+      cursors[i] = tables[i].next(cursors[i]);
+      if (cursors[i] != JoinHashTable.NONE) {
+        return true;
+      }
+      cursors[i] = tables[i].first(factTuple, factKeys[i]);
+    }
+    return false;
+  }
+
+  /**
+   * Moves on to the next fact tuple with a match in every dimension, with
+   * the cursors on the first combination; returns false if there are none.
+   */
+  private boolean nextFact() {
+    while (fact.hasNext()) {
+      factTuple = fact.getNext();
+      int i = 0;
+      while (i < dims.length) {
+        cursors[i] = tables[i].first(factTuple, factKeys[i]);
+        if (cursors[i] == JoinHashTable.NONE) {
+          break;
+        }
+        i++;
+      }
+      if (i == dims.length) {
+        return true;
+      }
+    }
+    factTuple = null;
+    return false;
+  }
+
+} // public class StarJoin extends Iterator
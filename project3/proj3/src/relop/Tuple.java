@@ -9,6 +9,11 @@ import heap.HeapFile;
  * Each tuple in a relation is a collection of bytes that must fit within a
  * single page. The Tuple class provides a logical view of fields, allowing get
  * and set operations while automatically handling offsets and type conversions.
+ * <p>
+ * Whether a field is null is kept apart from its value, in the null bitmap of
+ * the record (see Schema), so every value of a type can still be stored. A
+ * null field's bytes are zero; setting a value clears its flag, and the
+ * generic accessors give and take null.
  */
 public class Tuple {
 
@@ -54,7 +59,9 @@ public class Tuple {
   }
 
   /**
-   * Builds and returns a new tuple resulting from joining two tuples.
+   * Builds and returns a new tuple resulting from joining two tuples. The
+   * fields are fixed-width and the schema of the result lays them out one
+   * tuple after the other (see Schema.join), so the records are just copied.
    * 
    * @param t1 the left tuple
    * @param t2 the right tuple
@@ -63,24 +70,27 @@ public class Tuple {
   public static Tuple join(Tuple t1, Tuple t2, Schema schema) {
 
     // construct the new tuple
-    int t1cnt = t1.schema.getCount();
-    int t2cnt = t2.schema.getCount();
+    int t1len = t1.schema.getLength();
+    int t2len = t2.schema.getLength();
     Tuple tuple = new Tuple(schema);
 
-    // copy all fields from t1 and t2
-    int fldno = 0;
-    for (int i = 0; i < t1cnt; i++) {
-      tuple.setField(fldno++, t1.getField(i));
-    }
-    for (int i = 0; i < t2cnt; i++) {
-      tuple.setField(fldno++, t2.getField(i));
-    }
+    // copy the records of t1 and t2
+    System.arraycopy(t1.data, 0, tuple.data, 0, t1len);
+    System.arraycopy(t2.data, 0, tuple.data, t1len, t2len);
 
     // return the resulting tuple
     return tuple;
 
   } // public static Tuple join(Tuple t1, Tuple t2, Schema schema)
 
+  /**
+   * Points this tuple at a different record buffer, so that scans can recycle
+   * one Tuple object across records.
+   */
+  void wrap(byte[] data) {
+    this.data = data;
+  }
+
   /**
    * Gets the underlying data buffer.
    */
@@ -96,7 +106,7 @@ public class Tuple {
   }
 
   /**
-   * Gets a field's value generically.
+   * Gets a field's value generically, or null if the field is null.
    */
   public Object getField(int fldno) {
 
@@ -104,13 +114,13 @@ public class Tuple {
     switch (schema.fieldType(fldno)) {
 
       case AttrType.INTEGER:
-        return getIntFld(fldno);
+        return isNull(fldno) ? null : Integer.valueOf(getIntFld(fldno));
 
       case AttrType.FLOAT:
-        return getFloatFld(fldno);
+        return isNull(fldno) ? null : Float.valueOf(getFloatFld(fldno));
 
       case AttrType.STRING:
-        return getStringFld(fldno);
+        return isNull(fldno) ? null : getStringFld(fldno);
 
       default:
         throw new IllegalStateException("invalid attribute type");
@@ -126,10 +136,15 @@ public class Tuple {
   }
 
   /**
-   * Sets a field's value generically.
+   * Sets a field's value generically; null makes the field null.
    */
   public void setField(int fldno, Object val) {
 
+    if (val == null) {
+      setNull(fldno);
+      return;
+    }
+
     // refer to the schema for the appropriate conversion
     switch (schema.fieldType(fldno)) {
 
@@ -182,6 +197,47 @@ public class Tuple {
 
   } // public void setAllFields(Object... values)
 
+  /**
+   * Returns true if the given field is null.
+   */
+  public boolean isNull(int fldno) {
+    return (data[schema.nullOffset(fldno)] & schema.nullMask(fldno)) != 0;
+  }
+
+  /**
+   * Sets the given field to null, zeroing its bytes.
+   */
+  public void setNull(int fldno) {
+
+    int off = schema.fieldOffset(fldno);
+    int len = schema.fieldLength(fldno);
+    for (int i = 0; i < len; i++) {
+      data[off + i] = 0;
+    }
+    data[schema.nullOffset(fldno)] |= schema.nullMask(fldno);
+
+  } // public void setNull(int fldno)
+
+  /**
+   * Clears the given field's null flag, as its value is being set.
+   */
+  private void clearNull(int fldno) {
+    data[schema.nullOffset(fldno)] &= ~schema.nullMask(fldno);
+  }
+
+  /**
+   * Builds and returns a new tuple whose fields are all null.
+   */
+  public static Tuple nulls(Schema schema) {
+
+    Tuple tuple = new Tuple(schema);
+    for (int i = 0; i < schema.getCount(); i++) {
+      tuple.setNull(i);
+    }
+    return tuple;
+
+  } // public static Tuple nulls(Schema schema)
+
   /**
    * Gets an integer field.
    */
@@ -194,6 +250,7 @@ public class Tuple {
    */
   public void setIntFld(int fldno, int val) {
     Convert.setIntValue(val, schema.fieldOffset(fldno), data);
+    clearNull(fldno);
   }
 
   /**
@@ -208,6 +265,7 @@ public class Tuple {
    */
   public void setFloatFld(int fldno, float val) {
     Convert.setFloatValue(val, schema.fieldOffset(fldno), data);
+    clearNull(fldno);
   }
 
   /**
@@ -235,6 +293,7 @@ public class Tuple {
     for (int i = val.length(); i < len; i++) {
       data[off + i] = 0;
     }
+    clearNull(fldno);
 
   } // public void setStringFld(int fldno, String val)
 
@@ -247,6 +306,12 @@ public class Tuple {
     String str = null;
     int cnt = schema.getCount();
     for (int i = 0; i < cnt; i++) {
+      if (isNull(i)) {
+        System.out.print("null");
+        padOutput(schema.fieldType(i) == AttrType.STRING
+            ? schema.fieldLength(i) : 0, 4);
+        continue;
+      }
       switch (schema.fieldType(i)) {
 
         case AttrType.INTEGER:
@@ -0,0 +1,16 @@
+package relop;
+
+/**
+ * Receives the tuples pushed up a plan by Iterator.produce; this is the
+ * push-based counterpart of the getNext calls made in the pull model.
+ */
+public interface TupleConsumer {
+
+  /**
+   * Consumes the next tuple.
+   * 
+   * @return true to keep receiving tuples, false to stop the producer early
+   */
+  public boolean consume(Tuple tuple);
+
+} // public interface TupleConsumer
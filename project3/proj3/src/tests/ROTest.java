@@ -4,17 +4,28 @@ import global.AttrOperator;
 import global.AttrType;
 import global.RID;
 import global.SearchKey;
+import global.SortKey;
 import heap.HeapFile;
 import index.HashIndex;
+import relop.BandJoin;
+import relop.BlockNestedLoopJoin;
+import relop.Exchange;
 import relop.FileScan;
 import relop.HashJoin;
+import relop.IndexNestedLoopJoin;
 import relop.IndexScan;
+import relop.Iterator;
 import relop.KeyScan;
+import relop.LateHashJoin;
+import relop.PipelineCompiler;
 import relop.Predicate;
 import relop.Projection;
 import relop.Schema;
 import relop.Selection;
 import relop.SimpleJoin;
+import relop.Sort;
+import relop.SortMergeJoin;
+import relop.StarJoin;
 import relop.Tuple;
 
 /**
@@ -74,6 +85,9 @@ class ROTest extends TestDriver {
     status &= rot.test1();
     status &= rot.test2();
     status &= rot.test3();
+    status &= rot.test4();
+    status &= rot.test5();
+    status &= rot.test6();
 
     // display the final results
     System.out.println();
@@ -155,6 +169,53 @@ class ROTest extends TestDriver {
       pro.execute();
       saveCounts("both");
 
+      // test pipelining with recycled tuples
+      saveCounts(null);
+      System.out.println("\n  ~> selection and projection (reusing tuples)...\n");
+      scan = new FileScan(s_drivers, file);
+      sel = new Selection(scan, preds);
+      pro = new Projection(sel, 3, 1);
+      pro.setReuse(true);
+      pro.execute();
+      saveCounts("reuse");
+
+      // test push-based pipelining
+      saveCounts(null);
+      System.out.println("\n  ~> selection and projection (push-based)...\n");
+      scan = new FileScan(s_drivers, file);
+      sel = new Selection(scan, preds);
+      pro = new Projection(sel, 3, 1);
+      pro.executePush();
+      saveCounts("push");
+
+      // test a compiled pipeline
+      saveCounts(null);
+      System.out.println("\n  ~> selection and projection (compiled)...\n");
+      scan = new FileScan(s_drivers, file);
+      sel = new Selection(scan, preds);
+      pro = new Projection(sel, 3, 1);
+      PipelineCompiler.compile(pro).execute();
+      saveCounts("compile");
+
+      // the same plan with other constants reuses the kernel class
+      int classes = PipelineCompiler.getClassCount();
+      for (float age = 20F; age <= 60F; age += 20F) {
+        Predicate[] other = new Predicate[] {
+            new Predicate(AttrOperator.GT, AttrType.FIELDNO, 3,
+                AttrType.FLOAT, age + 45F),
+            new Predicate(AttrOperator.LT, AttrType.FIELDNO, 3,
+                AttrType.FLOAT, age) };
+        Iterator plan = PipelineCompiler.compile(new Projection(
+            new Selection(new FileScan(s_drivers, file), other), 3, 1));
+        while (plan.hasNext()) {
+          plan.getNext();
+        }
+        plan.close();
+      }
+      if (PipelineCompiler.getClassCount() != classes) {
+        throw new IllegalStateException("constants recompiled the kernel");
+      }
+
       // test join operator
       saveCounts(null);
       System.out.println("\n  ~> test simple (nested loops) join...\n");
@@ -165,8 +226,17 @@ class ROTest extends TestDriver {
       pro = new Projection(join, 0, 1, 5, 6);
       pro.execute();
 
+      System.out.println("\n  ~> test block nested loops join...\n");
+      BlockNestedLoopJoin bnlj = new BlockNestedLoopJoin(new FileScan(
+          s_drivers, file), new FileScan(s_drivers, file), 1, preds);
+      pro = new Projection(bnlj, 0, 1, 5, 6);
+      pro.execute();
+      System.out.println("\n  ~> scanned the right input "
+          + bnlj.getRightScans() + " time(s)");
+
       // destroy temp files before doing final counts
       join = null;
+      bnlj = null;
       pro = null;
       sel = null;
       scan = null;
@@ -187,7 +257,7 @@ class ROTest extends TestDriver {
       return FAIL;
 
     } finally {
-      printSummary(6);
+      printSummary(9);
       System.out.println();
     }
   } // protected boolean test1()
@@ -255,14 +325,155 @@ class ROTest extends TestDriver {
       tuple.insertIntoFile(rides);
       saveCounts("rides");
 
-      // test hash join operator
+      // the hash join below, spilling every partition
       saveCounts(null);
       HashJoin join = new HashJoin(new FileScan(s_drivers, drivers),
           new FileScan(s_rides, rides), 0, 0);
+      join.setMode(HashJoin.Mode.GRACE);
+      join.execute();
+      System.out.println("\n  ~> " + join.getStats());
+      saveCounts("grace");
+
+      // join on two columns at once, and find one pair through an index
+      saveCounts(null);
+      join = new HashJoin(new FileScan(s_drivers, drivers),
+          new FileScan(s_rides, rides), new int[] {0, 4}, new int[] {0, 1});
+      join.execute();
+      HashIndex ixrides = new HashIndex(null);
+      FileScan scan = new FileScan(s_rides, rides);
+      while (scan.hasNext()) {
+        Tuple t = scan.getNext();
+        ixrides.insertEntry(new SearchKey(new Object[] {t.getField(0),
+            t.getField(1)}), scan.getLastRID());
+      }
+      scan.close();
+      new KeyScan(s_rides, ixrides, new SearchKey(new Object[] {3, 4}),
+          rides).execute();
+      saveCounts("composite");
+
+      // drivers with and without rides, each once
+      saveCounts(null);
+      join = new HashJoin(new FileScan(s_drivers, drivers), new FileScan(
+          s_rides, rides), 0, 0, HashJoin.Type.SEMI);
+      join.explain(0);
+      int withRides = join.execute();
+      join = new HashJoin(new FileScan(s_drivers, drivers), new FileScan(
+          s_rides, rides), 0, 0, HashJoin.Type.ANTI);
+      join.explain(0);
+      int withoutRides = join.execute();
+      if (withRides != 8 || withoutRides != 1) {
+        throw new IllegalStateException("semi/anti-join gave " + withRides
+            + " and " + withoutRides + " drivers, not 8 and 1");
+      }
+
+      // all drivers, with or without rides
+      join = new HashJoin(new FileScan(s_drivers, drivers), new FileScan(
+          s_rides, rides), 0, 0, HashJoin.Type.FULL_OUTER);
+      join.explain(0);
+      int outer = 0, padded = 0;
+      while (join.hasNext()) {
+        Tuple t = join.getNext();
+        outer++;
+        if (t.isNull(5)) {
+          padded++;
+        } else if (t.getIntFld(0) != t.getIntFld(5)) {
+          throw new IllegalStateException("outer join matched wrong keys");
+        }
+      }
+      join.close();
+      if (outer != 13 || padded != 1) {
+        throw new IllegalStateException("outer join gave " + outer + " rows ("
+            + padded + " padded), not 13 (1 padded)");
+      }
+
+      // null keys match nothing, not even each other, and compare as false
+      HeapFile nulls = new HeapFile(null);
+      tuple = new Tuple(s_rides);
+      tuple.setAllFields(null, 1, "2/27/2006", "2/28/2006");
+      tuple.insertIntoFile(nulls);
+      tuple.insertIntoFile(nulls);
+      tuple.setAllFields(Integer.MIN_VALUE, 2, "2/27/2006", "2/28/2006");
+      tuple.insertIntoFile(nulls);
+      if (tuple.isNull(0) || !Integer.valueOf(Integer.MIN_VALUE).equals(
+          tuple.getField(0))) {
+        throw new IllegalStateException("a value was read back as null");
+      }
+      int inner = new HashJoin(new FileScan(s_rides, nulls), new FileScan(
+          s_rides, nulls), 0, 0).execute();
+      outer = new HashJoin(new FileScan(s_rides, nulls), new FileScan(s_rides,
+          nulls), 0, 0, HashJoin.Type.FULL_OUTER).execute();
+      Predicate[] under = { new Predicate(AttrOperator.LT, AttrType.FIELDNO,
+          0, AttrType.INTEGER, 10) };
+      int below = new Selection(new FileScan(s_rides, nulls), under).execute();
+      int compiled = PipelineCompiler.compile(
+          new Selection(new FileScan(s_rides, nulls), under)).execute();
+      HashIndex ixdrivers = new HashIndex(null);
+      scan = new FileScan(s_drivers, drivers);
+      while (scan.hasNext()) {
+        ixdrivers.insertEntry(new SearchKey(scan.getNext().getField(0)), scan
+            .getLastRID());
+      }
+      scan.close();
+      int indexed = new IndexNestedLoopJoin(new FileScan(s_rides, nulls), 0,
+          s_drivers, ixdrivers, drivers).execute();
+      System.out.println("\n  ~> null keys: inner " + inner + ", outer "
+          + outer + ", below " + below + "/" + compiled + ", indexed "
+          + indexed);
+      if (inner != 1 || outer != 5 || below != 1 || compiled != 1
+          || indexed != 0) {
+        throw new IllegalStateException("null keys were matched or compared");
+      }
+
+      // the inner join again, fetching the records for the results only
+      LateHashJoin late = new LateHashJoin(new FileScan(s_drivers, drivers),
+          new FileScan(s_rides, rides), 0, 0);
+      late.explain(0);
+      late.execute();
+      System.out.println("\n  ~> " + late.getStats());
+      if (late.getStats().mode != HashJoin.Mode.IN_MEMORY) {
+        throw new IllegalStateException("late join did not size its inputs");
+      }
+
+      // rides with their drivers and the drivers matching their groups, in
+      // one pass over rides and as a tree of two joins
+      StarJoin star = new StarJoin(new FileScan(s_rides, rides),
+          new Iterator[] { new FileScan(s_drivers, drivers),
+              new FileScan(s_drivers, drivers) }, new int[] { 0, 1 },
+          new int[] { 0, 0 });
+      star.explain(0);
+      int starCount = star.execute();
+      HashJoin tree = new HashJoin(new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_drivers, drivers), 0, 0), new FileScan(s_drivers,
+          drivers), 1, 0);
+      int treeCount = 0;
+      while (tree.hasNext()) {
+        tree.getNext();
+        treeCount++;
+      }
+      tree.close();
+      System.out.println("\n  ~> star: " + starCount + " tuples, tree: "
+          + treeCount + " tuples");
+      if (starCount != treeCount) {
+        throw new IllegalStateException("star join lost or duplicated tuples");
+      }
+      saveCounts("variants");
+
+      // test hash join operator
+      saveCounts(null);
+      join = new HashJoin(new FileScan(s_drivers, drivers),
+          new FileScan(s_rides, rides), 0, 0);
       join.execute();
+      System.out.println("\n  ~> " + join.getStats());
 
       // destroy temp files before doing final counts
       join = null;
+      late = null;
+      star = null;
+      tree = null;
+      scan = null;
+      ixrides = null;
+      ixdrivers = null;
+      nulls = null;
       rides = null;
       drivers = null;
       System.gc();
@@ -279,7 +490,7 @@ class ROTest extends TestDriver {
       return FAIL;
 
     } finally {
-      printSummary(3);
+      printSummary(6);
       System.out.println();
     }
   } // protected boolean test2()
@@ -348,9 +559,29 @@ class ROTest extends TestDriver {
       Selection sel = new Selection(join2, new Predicate(AttrOperator.LT,
           AttrType.FIELDNO, 10, AttrType.FIELDNO, 0));
       sel.execute();
+      saveCounts("query");
+
+      // the same query, probing the drivers index for each ride
+      saveCounts(null);
+      join1 = new HashJoin(new FileScan(s_groups, groups), new FileScan(
+          s_rides, rides), 0, 1);
+      IndexNestedLoopJoin join3 = new IndexNestedLoopJoin(join1, 2, s_drivers,
+          ixdrivers, drivers);
+      sel = new Selection(join3, new Predicate(AttrOperator.LT,
+          AttrType.FIELDNO, 10, AttrType.FIELDNO, 0));
+      int count = 0;
+      while (sel.hasNext()) {
+        sel.getNext();
+        count++;
+      }
+      sel.close();
+      System.out.println("\n  ~> index nested loops: " + count + " tuples, "
+          + join3.getProbes() + " probes, " + join3.getCacheHits()
+          + " cache hits");
 
       // destroy temp files before doing final counts
       sel = null;
+      join3 = null;
       join2 = null;
       join1 = null;
       groups = null;
@@ -358,7 +589,7 @@ class ROTest extends TestDriver {
       ixdrivers = null;
       drivers = null;
       System.gc();
-      saveCounts("query");
+      saveCounts("inlj");
 
       // that's all folks!
       System.out.print("\n\nTest 3 completed without exception.");
@@ -371,9 +602,527 @@ class ROTest extends TestDriver {
       return FAIL;
 
     } finally {
-      printSummary(4);
+      printSummary(5);
       System.out.println();
     }
   } // protected boolean test3()
 
+  /**
+   * SELECT R.DriverId, R.GroupId FROM Rides R WHERE R.GroupId < 50; run
+   * serially and split across four workers.
+   */
+  protected boolean test4() {
+    try {
+
+      System.out.println("\nTest 4: Intra-query parallelism\n");
+      initCounts();
+
+      // create and populate the rides table
+      saveCounts(null);
+      initRandom();
+      Tuple tuple = new Tuple(s_rides);
+      HeapFile rides = new HeapFile(null);
+      for (int i = 1; i <= SUPER_SIZE; i++) {
+        int r1 = Math.abs(random.nextInt() % SUPER_SIZE + 1);
+        int r2 = Math.abs(random.nextInt() % (SUPER_SIZE / 10) + 1);
+        tuple.setAllFields(r1, r2, "3/27/2006", "4/7/2006");
+        tuple.insertIntoFile(rides);
+      }
+      saveCounts("rides");
+
+      // run the pipeline serially
+      saveCounts(null);
+      Projection serial = new Projection(new Selection(new FileScan(s_rides,
+          rides), new Predicate(AttrOperator.LT, AttrType.FIELDNO, 1,
+          AttrType.INTEGER, 50)), 0, 1);
+      int expected = 0;
+      while (serial.hasNext()) {
+        serial.getNext();
+        expected++;
+      }
+      serial.close();
+      System.out.println("  ~> serial:   " + expected + " tuples");
+      saveCounts("serial");
+
+      // run it again through an exchange, one morsel per page
+      saveCounts(null);
+      Exchange exchange = new Exchange(new FileScan(s_rides, rides),
+          new Exchange.Pipeline() {
+            public relop.Iterator create(relop.Iterator source) {
+              return new Projection(new Selection(source, new Predicate(
+                  AttrOperator.LT, AttrType.FIELDNO, 1, AttrType.INTEGER, 50)),
+                  0, 1);
+            }
+          }, 4, 1);
+      int actual = 0;
+      while (exchange.hasNext()) {
+        if (50 <= exchange.getNext().getIntFld(1)) {
+          throw new IllegalStateException("exchange returned a wrong tuple");
+        }
+        actual++;
+      }
+      exchange.close();
+      System.out.println("  ~> exchange: " + actual + " tuples");
+      if (actual != expected) {
+        throw new IllegalStateException("exchange lost or duplicated tuples");
+      }
+      saveCounts("exchange");
+
+      // probe a hash join on the workers, sharing one table
+      saveCounts(null);
+      final HashJoin build = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 0);
+      expected = 0;
+      while (build.hasNext()) {
+        build.getNext();
+        expected++;
+      }
+      exchange = new Exchange(new FileScan(s_rides, rides),
+          new Exchange.Pipeline() {
+            public relop.Iterator create(relop.Iterator source) {
+              return new HashJoin(source, build);
+            }
+          }, 4, 1);
+      exchange.explain(0);
+      actual = 0;
+      while (exchange.hasNext()) {
+        Tuple t = exchange.getNext();
+        if (t.getIntFld(1) != t.getIntFld(4)) {
+          throw new IllegalStateException("exchange returned a wrong tuple");
+        }
+        actual++;
+      }
+      exchange.close();
+      build.close();
+      System.out.println("  ~> serial join:   " + expected + " tuples");
+      System.out.println("  ~> exchange join: " + actual + " tuples");
+      if (actual != expected) {
+        throw new IllegalStateException("exchange lost or duplicated tuples");
+      }
+
+      // a build side that does not fit in memory cannot be shared
+      HashJoin large = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 0, 2);
+      try {
+        new HashJoin(new FileScan(s_rides, rides), large);
+        throw new IllegalStateException("shared an oversized build side");
+      } catch (IllegalArgumentException exc) {
+        System.out.println("  ~> oversized build side not shared");
+      }
+      large.close();
+
+      // destroy temp files before doing final counts
+      serial = null;
+      exchange = null;
+      rides = null;
+      System.gc();
+      saveCounts("join");
+
+      // that's all folks!
+      System.out.print("\n\nTest 4 completed without exception.");
+      return PASS;
+
+    } catch (Exception exc) {
+
+      exc.printStackTrace(System.out);
+      System.out.print("\n\nTest 4 terminated because of exception.");
+      return FAIL;
+
+    } finally {
+      printSummary(3);
+      System.out.println();
+    }
+  } // protected boolean test4()
+
+  /**
+   * Sorts the rides table on disk, and joins it with itself on GroupId by
+   * sort-merge, checking the result against a hash join.
+   */
+  protected boolean test5() {
+    try {
+
+      System.out.println("\nTest 5: Sort-merge and band join operators\n");
+      initCounts();
+
+      // create and populate the rides table
+      saveCounts(null);
+      initRandom();
+      Tuple tuple = new Tuple(s_rides);
+      HeapFile rides = new HeapFile(null);
+      for (int i = 1; i <= SUPER_SIZE; i++) {
+        int r1 = Math.abs(random.nextInt() % SUPER_SIZE + 1);
+        int r2 = Math.abs(random.nextInt() % (SUPER_SIZE / 10) + 1);
+        tuple.setAllFields(r1, r2, "3/27/2006", "4/7/2006");
+        tuple.insertIntoFile(rides);
+      }
+      saveCounts("rides");
+
+      // sort it in a few pages of memory, i.e. by merging runs
+      saveCounts(null);
+      Sort sort = new Sort(new FileScan(s_rides, rides), 4, new SortKey(
+          "GroupId", true), new SortKey("DriverId", false));
+      sort.explain(0);
+      int count = 0;
+      Tuple last = null;
+      while (sort.hasNext()) {
+        Tuple t = sort.getNext();
+        if (null != last && (last.getIntFld(1) < t.getIntFld(1)
+            || (last.getIntFld(1) == t.getIntFld(1)
+                && last.getIntFld(0) > t.getIntFld(0)))) {
+          throw new IllegalStateException("sort returned tuples out of order");
+        }
+        last = t;
+        count++;
+      }
+      sort.close();
+      System.out.println("  ~> sorted " + count + " tuples");
+      saveCounts("sort");
+
+      // join on a column with many duplicates
+      saveCounts(null);
+      SortMergeJoin merge = new SortMergeJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 1);
+      merge.explain(0);
+      int actual = 0;
+      while (merge.hasNext()) {
+        Tuple t = merge.getNext();
+        if (t.getIntFld(1) != t.getIntFld(5)) {
+          throw new IllegalStateException("merge returned a wrong tuple");
+        }
+        actual++;
+      }
+      merge.close();
+      HashJoin join = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 1);
+      int expected = 0;
+      while (join.hasNext()) {
+        join.getNext();
+        expected++;
+      }
+      join.close();
+      join = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 1, 4);
+      join.setMode(HashJoin.Mode.GRACE);
+      join.setParallelism(4);
+      int parallel = 0;
+      while (join.hasNext()) {
+        join.getNext();
+        parallel++;
+      }
+      join.close();
+
+      // the same join again probes the partitions the last one left behind
+      join = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 1, 4);
+      join.setMode(HashJoin.Mode.GRACE);
+      int reused = 0;
+      while (join.hasNext()) {
+        join.getNext();
+        reused++;
+      }
+      join.close();
+
+      System.out.println("  ~> sort-merge: " + actual + " tuples");
+      System.out.println("  ~> hash:       " + expected + " tuples");
+      System.out.println("  ~> parallel:   " + parallel + " tuples");
+      System.out.println("  ~> reused:     " + reused + " tuples ("
+          + join.getStats() + ")");
+      if (actual != expected || parallel != expected || reused != expected) {
+        throw new IllegalStateException("merge lost or duplicated tuples");
+      }
+      if (!join.getStats().reused) {
+        throw new IllegalStateException("partitions not reused");
+      }
+
+      // moving some rides to another group in place (keeping the record
+      // count) makes the registered partitions stale, so they are not used
+      FileScan scan = new FileScan(s_rides, rides);
+      for (int i = 0; scan.hasNext(); i++) {
+        Tuple t = scan.getNext();
+        if (i % 10 == 0) {
+          t.setIntFld(1, t.getIntFld(1) % 7 + 1);
+          rides.updateRecord(scan.getLastRID(), t.getData());
+        }
+      }
+      scan.close();
+      join = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 1, 4);
+      join.setMode(HashJoin.Mode.GRACE);
+      int updated = 0;
+      while (join.hasNext()) {
+        join.getNext();
+        updated++;
+      }
+      join.close();
+      HashJoin fresh = new HashJoin(new FileScan(s_rides, rides),
+          new FileScan(s_rides, rides), 1, 1, 4);
+      fresh.setMode(HashJoin.Mode.GRACE);
+      fresh.setPartitionReuse(false);
+      expected = 0;
+      while (fresh.hasNext()) {
+        fresh.getNext();
+        expected++;
+      }
+      fresh.close();
+      System.out.println("  ~> updated:    " + updated + " tuples ("
+          + join.getStats() + ")");
+      if (join.getStats().reused || updated != expected) {
+        throw new IllegalStateException("stale partitions were reused");
+      }
+
+      // reading the file as another schema of the same length hashes other
+      // bytes (or the same bytes another way), so its partitions are not used
+      Schema s_coded = new Schema(4);
+      s_coded.initField(0, AttrType.INTEGER, 4, "DriverId");
+      s_coded.initField(1, AttrType.STRING, 4, "GroupCode");
+      s_coded.initField(2, AttrType.STRING, 10, "FromDate");
+      s_coded.initField(3, AttrType.STRING, 10, "ToDate");
+      join = new HashJoin(new FileScan(s_coded, rides), new FileScan(s_coded,
+          rides), 1, 1, 4);
+      join.setMode(HashJoin.Mode.GRACE);
+      while (join.hasNext()) {
+        join.getNext();
+      }
+      join.close();
+      if (join.getStats().reused) {
+        throw new IllegalStateException(
+            "partitions of another key were reused");
+      }
+
+      // join on a range, i.e. DriverId BETWEEN GroupId AND DriverId
+      Predicate few = new Predicate(AttrOperator.LTE, AttrType.FIELDNO, 0,
+          AttrType.INTEGER, 50);
+      BandJoin band = new BandJoin(new FileScan(s_rides, rides), new Selection(
+          new FileScan(s_rides, rides), few), 0, 1, 0);
+      band.explain(0);
+      actual = 0;
+      while (band.hasNext()) {
+        band.getNext();
+        actual++;
+      }
+      band.close();
+      Selection nested = new Selection(new BlockNestedLoopJoin(new FileScan(
+          s_rides, rides), new Selection(new FileScan(s_rides, rides), few),
+          new Predicate(AttrOperator.GTE, AttrType.FIELDNO, 0, AttrType.FIELDNO,
+              5)), new Predicate(AttrOperator.LTE, AttrType.FIELDNO, 0,
+          AttrType.FIELDNO, 4));
+      expected = 0;
+      while (nested.hasNext()) {
+        nested.getNext();
+        expected++;
+      }
+      nested.close();
+      System.out.println("  ~> band:   " + actual + " tuples, "
+          + band.getCompared() + " compared");
+      System.out.println("  ~> nested: " + expected + " tuples");
+      if (actual != expected) {
+        throw new IllegalStateException("band join lost or duplicated tuples");
+      }
+
+      // destroy temp files before doing final counts
+      sort = null;
+      merge = null;
+      join = null;
+      band = null;
+      nested = null;
+      scan = null;
+      fresh = null;
+      rides = null;
+      System.gc();
+      saveCounts("merge");
+
+      // that's all folks!
+      System.out.print("\n\nTest 5 completed without exception.");
+      return PASS;
+
+    } catch (Exception exc) {
+
+      exc.printStackTrace(System.out);
+      System.out.print("\n\nTest 5 terminated because of exception.");
+      return FAIL;
+
+    } finally {
+      printSummary(3);
+      System.out.println();
+    }
+  } // protected boolean test5()
+
+  /**
+   * Joins rides in a few pages of memory, so that one group is too big for
+   * its partition, with each type of hash join; checks each against the same
+   * join in memory and on several workers, and a skewed join against a
+   * sort-merge join.
+   */
+  protected boolean test6() {
+    try {
+
+      System.out.println("\nTest 6: Hash join of oversized partitions\n");
+      initCounts();
+
+      // create and populate two rides tables sharing one big group
+      saveCounts(null);
+      initRandom();
+      Tuple tuple = new Tuple(s_rides);
+      HeapFile rides = new HeapFile(null);
+      for (int i = 1; i <= SUPER_SIZE; i++) {
+        int r1 = Math.abs(random.nextInt() % SUPER_SIZE + 1);
+        int r2 = (i % 2 == 0) ? 1 : Math.abs(random.nextInt() % 100 + 1);
+        tuple.setAllFields(r1, r2, "3/27/2006", "4/7/2006");
+        tuple.insertIntoFile(rides);
+      }
+      HeapFile others = new HeapFile(null);
+      for (int i = 1; i <= SUPER_SIZE / 2; i++) {
+        int r1 = Math.abs(random.nextInt() % SUPER_SIZE + 1);
+        int r2 = (i % 2 == 0) ? 1 : Math.abs(random.nextInt() % 100 + 51);
+        tuple.setAllFields(r1, r2, "3/27/2006", "4/7/2006");
+        tuple.insertIntoFile(others);
+      }
+      saveCounts("rides");
+
+      // the big group is joined a chunk of build tuples at a time, so the
+      // matches of each probe tuple and build tuple are tracked across chunks
+      saveCounts(null);
+      int[] counts = new int[HashJoin.Type.values().length];
+      for (HashJoin.Type type : HashJoin.Type.values()) {
+        HashJoin chunked = new HashJoin(new FileScan(s_rides, rides),
+            new FileScan(s_rides, others), new int[] { 1 }, new int[] { 1 },
+            4, type);
+        chunked.setMode(HashJoin.Mode.GRACE);
+        chunked.setSkewHandling(false);
+        chunked.setPartitionReuse(false);
+        int actual = 0;
+        while (chunked.hasNext()) {
+          chunked.getNext();
+          actual++;
+        }
+        chunked.close();
+        HashJoin memory = new HashJoin(new FileScan(s_rides, rides),
+            new FileScan(s_rides, others), new int[] { 1 }, new int[] { 1 },
+            HashJoin.DEFAULT_MEMORY_PAGES, type);
+        memory.setMode(HashJoin.Mode.IN_MEMORY);
+        int expected = 0;
+        while (memory.hasNext()) {
+          memory.getNext();
+          expected++;
+        }
+        memory.close();
+        System.out.println("  ~> " + type + ": " + actual + " tuples ("
+            + chunked.getStats() + ")");
+        if (actual != expected) {
+          throw new IllegalStateException(type + " join gave " + actual
+              + " tuples in chunks, not " + expected);
+        }
+        if (0 == chunked.getStats().chunks) {
+          throw new IllegalStateException("oversized partitions not chunked");
+        }
+        counts[type.ordinal()] = actual;
+      }
+      int inner = counts[HashJoin.Type.INNER.ordinal()];
+      int semi = counts[HashJoin.Type.SEMI.ordinal()];
+      int anti = counts[HashJoin.Type.ANTI.ordinal()];
+      int right = counts[HashJoin.Type.RIGHT_OUTER.ordinal()];
+      if (semi + anti != SUPER_SIZE
+          || counts[HashJoin.Type.LEFT_OUTER.ordinal()] != inner + anti
+          || counts[HashJoin.Type.FULL_OUTER.ordinal()] != right + anti) {
+        throw new IllegalStateException("join types disagree");
+      }
+
+      // the spilled partition pairs joined on several workers at once
+      for (HashJoin.Type type : HashJoin.Type.values()) {
+        int serial = 0;
+        for (int workers = 1; workers <= 4; workers *= 2) {
+          HashJoin parallel = new HashJoin(new FileScan(s_rides, rides),
+              new FileScan(s_rides, others), new int[] { 1 }, new int[] { 1 },
+              16, type);
+          parallel.setMode(HashJoin.Mode.GRACE);
+          parallel.setPartitionReuse(false);
+          parallel.setParallelism(workers);
+          int actual = 0;
+          while (parallel.hasNext()) {
+            parallel.getNext();
+            actual++;
+          }
+          parallel.close();
+          if (1 == workers) {
+            serial = actual;
+          } else if (actual != serial) {
+            throw new IllegalStateException(type + " join gave " + actual
+                + " tuples on " + workers + " workers, not " + serial);
+          }
+        }
+        System.out.println("  ~> " + type + " on 1, 2, 4 workers: " + serial
+            + " tuples");
+        if (serial != counts[type.ordinal()]) {
+          throw new IllegalStateException(type + " join gave " + serial
+              + " tuples in 16 pages, not " + counts[type.ordinal()]);
+        }
+      }
+
+      // half the build side shares one driver, which is found in the sample
+      // and joined in chunks without first trying to split it
+      HeapFile skewed = new HeapFile(null);
+      for (int i = 0; i < 6000; i++) {
+        tuple.setAllFields(i % 2 == 0 ? 7 : SUPER_SIZE + i, 1, "3/27/2006",
+            "4/7/2006");
+        tuple.insertIntoFile(skewed);
+      }
+      HeapFile probes = new HeapFile(null);
+      for (int i = 0; i < 100; i++) {
+        tuple.setAllFields(i < 3 ? 7 : SUPER_SIZE + 2 * i + 1, 2, "3/27/2006",
+            "4/7/2006");
+        tuple.insertIntoFile(probes);
+      }
+      HashJoin join = new HashJoin(new FileScan(s_rides, probes),
+          new FileScan(s_rides, skewed), 0, 0, 16);
+      int hot = 0;
+      while (join.hasNext()) {
+        join.getNext();
+        hot++;
+      }
+      join.close();
+      SortMergeJoin merge = new SortMergeJoin(new FileScan(s_rides, probes),
+          new FileScan(s_rides, skewed), 0, 0);
+      int expected = 0;
+      while (merge.hasNext()) {
+        merge.getNext();
+        expected++;
+      }
+      merge.close();
+      System.out.println("  ~> skewed: " + hot + " tuples ("
+          + join.getStats() + ")");
+      if (hot != expected || expected != 3 * 3000 + 97) {
+        throw new IllegalStateException(
+            "skewed join lost or duplicated tuples");
+      }
+      if (0 == join.getStats().hotKeys || 0 != join.getStats().repartitioned
+          || 0 == join.getStats().chunks) {
+        throw new IllegalStateException("hot key not found or not chunked");
+      }
+
+      // destroy temp files before doing final counts
+      join = null;
+      merge = null;
+      skewed = null;
+      probes = null;
+      others = null;
+      rides = null;
+      System.gc();
+      saveCounts("join");
+
+      // that's all folks!
+      System.out.print("\n\nTest 6 completed without exception.");
+      return PASS;
+
+    } catch (Exception exc) {
+
+      exc.printStackTrace(System.out);
+      System.out.print("\n\nTest 6 terminated because of exception.");
+      return FAIL;
+
+    } finally {
+      printSummary(2);
+      System.out.println();
+    }
+  } // protected boolean test6()
+
 } // class ROTest extends TestDriver